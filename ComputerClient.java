@@ -1,6 +1,13 @@
 import java.util.*;
 import java.io.*;
 import java.net.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.charset.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.zip.*;
+import javax.management.*;
 import java.awt.*;
 import java.awt.event.*;
 import java.awt.image.*;
@@ -19,9 +26,9 @@ class HumanClient extends Client
 		frame = new GameFrame(this);
 	}
 	
-	void connect(byte[] address, int port) throws IOException
+	void connect(byte[] address, int port, String room, int numPlayers) throws IOException
 	{
-		super.connect(address, port);
+		super.connect(address, port, room, numPlayers);
 		frame.setVisible(true);
 	}
 	
@@ -31,236 +38,260 @@ class HumanClient extends Client
 		super.close();
 	}
 	
-	void startListener()
+	void onNewGame()
 	{
-		new Thread()
+		if (!frame.started) frame.start();
+		frame.showMessage("NEW GAME STARTED");
+		frame.changeAll();
+	}
+	
+	void onFlip(int tileIndex)
+	{
+		frame.changePile();
+	}
+	
+	void onTake(ChangeData data)
+	{
+		frame.changeWordPanels(data.playerTaken, data.playerStolen);
+	}
+	
+	void onRejectRequest(int index)
+	{
+		ChangeData data = game.lastSteals.get(index);
+		frame.openRejectConfirmBox(data.stolen, data.taken, index);
+	}
+	
+	void onUndo(String word)
+	{
+		frame.showMessage("\"" + word + "\" REJECTED");
+		frame.changeAll();
+	}
+	
+	void onMessage(int player, String message)
+	{
+		frame.newMessage(game.playerNames[player], message);
+	}
+	
+	void onShow(String message)
+	{
+		frame.showMessage(message);
+	}
+	
+	void onSnapshot()
+	{
+		if (!frame.started) frame.start();
+		frame.changeAll();
+	}
+	
+	void onThrottle(int millis)
+	{
+		frame.showMessage("Too many words! Wait a moment.");
+	}
+	
+	void onDisconnect()
+	{
+		JOptionPane.showMessageDialog(frame, "Disconnected to server.");
+		
+		try
 		{
-			public void run()
-			{
-				while (true)
-				{
-					try
-					{
-						String[] codes = getCodes();
-						
-						if (codes == null)
-							throw new IOException();
-						
-						if (codes[0].equals("NEW"))
-						{
-							// NEW [numPlayers] [player name] [player name] ... [letter] [letter] [letter] ...
-							newGame(codes);
-							if (!frame.started) frame.start();
-							frame.showMessage("NEW GAME STARTED");
-							frame.changeAll();
-						}
-						else if (codes[0].equals("FLIP"))
-						{
-							// FLIP [letter index]
-							game.flipTile(Integer.parseInt(codes[1]));
-							frame.changePile();
-						}
-						else if (codes[0].equals("TAKE"))
-						{
-							// TAKE [change data]
-							ChangeData data = ChangeData.parse(codes[1].replace('\0', ' '));
-							game.processChange(data);
-							frame.changeWordPanels(data.playerTaken, data.playerStolen);
-						}
-						else if (codes[0].equals("REJECT_REQ"))
-						{
-							// REJECT_REQ [ChangeData index]
-							int index = Integer.parseInt(codes[1]);
-							ChangeData data = game.lastSteals.get(index);
-							
-							frame.openRejectConfirmBox(data.stolen, data.taken, index);
-						}
-						else if (codes[0].equals("UNDO"))
-						{
-							// UNDO [ChangeData index] [word]
-							game.undoChanges(Integer.parseInt(codes[1]));
-							frame.showMessage("\"" + codes[2] + "\" REJECTED");
-							frame.changeAll();
-						}
-						else if (codes[0].equals("MESSAGE"))
-						{
-							// MESSAGE [player index] [message]
-							frame.newMessage(game.playerNames[Integer.parseInt(codes[1])], codes[2].replace('\0', ' '));
-						}
-						else if (codes[0].equals("SHOW"))
-						{
-							// SHOW [message]
-							frame.showMessage(codes[1].replace('\0', ' '));
-						}
-					}
-					catch (IOException e)
-					{
-						JOptionPane.showMessageDialog(frame, "Disconnected to server.");
-						
-						try
-						{
-							close();
-						}
-						catch (IOException e_)
-						{
-							JOptionPane.showMessageDialog(frame, "Error.");
-						}
-						
-						return;
-					}
-				}
-			}
-		}.start();
+			close();
+		}
+		catch (IOException e_)
+		{
+			JOptionPane.showMessageDialog(frame, "Error.");
+		}
 	}
 }
 
 class ComputerClient extends Client
 {
-	static final int SPEED = 3;
+	static final int REACTION_TIME = 1500; // in milliseconds
 	static final int FLIP_TIME = 0;
 	
 	boolean started;
-
+	
+	ScheduledExecutorService reactions;
+	HashMap<String, ScheduledFuture<?>> pendingTakes;
+	ScheduledFuture<?> pendingFlip;
+	volatile Set<String> currentTakes;
+	volatile int generation;
+	long throttledUntil;
+	
 	ComputerClient(String name)
 	{
 		super(name);
 		game = new ComputerGame();
+		reactions = Executors.newSingleThreadScheduledExecutor();
+		pendingTakes = new HashMap<String, ScheduledFuture<?>>();
+		currentTakes = new HashSet<String>();
+	}
+	
+	void close() throws IOException
+	{
+		reactions.shutdownNow();
+		super.close();
+	}
+	
+	void onNewGame()
+	{
+		if (!started) started = true;
+		planMoves();
+	}
+	
+	void onFlip(int tileIndex)
+	{
+		planMoves();
+	}
+	
+	void onTake(ChangeData data)
+	{
+		planMoves();
+	}
+	
+	void onRejectRequest(int index)
+	{
+		requestRejection(index);
+	}
+	
+	void onUndo(String word)
+	{
+		planMoves();
+	}
+	
+	void onMessage(int player, String message) {}
+	
+	void onShow(String message)
+	{
+		if (message.equals("New game requested!"))
+			requestNewGame();
+	}
+	
+	void onSnapshot()
+	{
+		started = true;
+		planMoves();
+	}
+	
+	// the server dropped a take, so every planned take waits until it accepts them again
+	void onThrottle(int millis)
+	{
+		for (ScheduledFuture<?> reaction : pendingTakes.values())
+			reaction.cancel(false);
+		pendingTakes.clear();
+		
+		throttledUntil = System.currentTimeMillis() + millis;
+		planMoves();
 	}
 	
-	void startListener()
+	void onDisconnect()
 	{
-		new Thread()
+		try
 		{
-			public void run()
+			started = false;
+			close();
+		}
+		catch (IOException e_) {}
+	}
+	
+	// called by the listener thread whenever the game state changes. Words that
+	// were already planned keep their reaction time; words that are no longer
+	// legal are dropped.
+	private void planMoves()
+	{
+		final int current = ++generation;
+		
+		ArrayList<String> takes = started ? ((ComputerGame)game).legalTakes() : new ArrayList<String>();
+		currentTakes = new HashSet<String>(takes);
+		
+		Iterator<Map.Entry<String, ScheduledFuture<?>>> it = pendingTakes.entrySet().iterator();
+		while (it.hasNext())
+		{
+			Map.Entry<String, ScheduledFuture<?>> entry = it.next();
+			if (!currentTakes.contains(entry.getKey()))
 			{
-				while (true)
-				{
-					try
-					{
-						String[] codes = getCodes();
-						
-						if (codes == null)
-							throw new IOException();
-						
-						if (codes[0].equals("NEW"))
-						{
-							// NEW [numPlayers] [player name] [player name] ... [letter] [letter] [letter] ...
-							newGame(codes);
-							if (!started) started = true;
-						}
-						else if (codes[0].equals("FLIP"))
-						{
-							// FLIP [letter index]
-							game.flipTile(Integer.parseInt(codes[1]));
-							
-						}
-						else if (codes[0].equals("TAKE"))
-						{
-							// TAKE [change data]
-							ChangeData data = ChangeData.parse(codes[1].replace('\0', ' '));
-							game.processChange(data);
-							
-						}
-						else if (codes[0].equals("REJECT_REQ"))
-						{
-							// REJECT_REQ [ChangeData index]
-							int index = Integer.parseInt(codes[1]);						
-							requestRejection(index);
-						}
-						else if (codes[0].equals("UNDO"))
-						{
-							// UNDO [ChangeData index] [word]
-							game.undoChanges(Integer.parseInt(codes[1]));
-							
-						}
-						else if (codes[0].equals("SHOW"))
-						{
-							// SHOW [message]
-							if (codes[1].equals("New game requested!".replace(' ', '\0')))
-								requestNewGame();
-						}
-					}
-					catch (IOException e)
-					{
-						try
-						{
-							started = false;
-							close();
-						}
-						catch (IOException e_) {}
-						
-						return;
-					}
-				}
+				entry.getValue().cancel(false);
+				it.remove();
 			}
-		}.start();
+		}
 		
-		new Thread()
+		long wait = Math.max(0, throttledUntil - System.currentTimeMillis());
+		for (final String word : takes)
 		{
-			public void run()
+			if (pendingTakes.containsKey(word))
+				continue;
+			
+			ScheduledFuture<?> reaction = schedule(new Runnable()
 			{
-				try
+				public void run()
 				{
-					while (!started)
-						try { Thread.sleep(100); } catch (InterruptedException e) {}
-					while (started)
-					{
-						int index = (int)(Math.random() * Dictionary.size());
-						if (((ComputerGame)game).canTake(Dictionary.getWord(index)))
-						{
-							//System.out.println("WORD FOUND: " + Dictionary.getWord(index));
-							//System.out.println(Arrays.toString(((ComputerGame)game).charCounts));
-							attemptTake(Dictionary.getWord(index));
-						}
-						
-						if (playerIndex == game.currentPlayer && game.remainingTime() <= Math.max(0, Game.MAX_FLIP_TIME - FLIP_TIME))
-						{
-							flipTile();
-						}
-						
-						index++;
-						if (index % SPEED == 0)
-							try { Thread.sleep(1); } catch (InterruptedException e) {}
-						if (index >= Dictionary.size())
-						{
-							index = 0;
-							//System.out.println(Arrays.toString(((ComputerGame)game).charCounts));
-						}
-					}
+					if (currentTakes.contains(word))
+						attemptTake(word);
 				}
-				catch (Exception e)
+			}, wait + REACTION_TIME);
+			
+			if (reaction != null)
+				pendingTakes.put(word, reaction);
+		}
+		
+		if (pendingFlip != null)
+			pendingFlip.cancel(false);
+		pendingFlip = null;
+		
+		if (started && playerIndex == game.currentPlayer)
+		{
+			long flipTime = game.lastFlipTime + 1000L * Math.min(FLIP_TIME, Game.MAX_FLIP_TIME);
+			pendingFlip = schedule(new Runnable()
+			{
+				public void run()
 				{
-					e.printStackTrace();
-					return;
+					if (generation == current)
+						flipTile();
 				}
-			}
-		}.start();
+			}, Math.max(0, flipTime - System.currentTimeMillis()));
+		}
+	}
+	
+	private ScheduledFuture<?> schedule(Runnable reaction, long delay)
+	{
+		try
+		{
+			return reactions.schedule(reaction, delay, TimeUnit.MILLISECONDS);
+		}
+		catch (RejectedExecutionException e)
+		{
+			return null;
+		}
 	}
 }
 
 class ComputerGame extends Game
 {
 	int[] charCounts;
+	LetterCounts pileCounts;
 	LinkedList<Integer>[] currentLetters;
-	LinkedList<Word> words;
+	WordTable words;
+	HashMap<Word, ArrayList<Candidate>> candidates;
 	
 	ComputerGame()
 	{
 		currentLetters = (LinkedList<Integer>[]) new LinkedList[NUM_LETTERS];
 		for (int i = 0; i < NUM_LETTERS; i++)
 			currentLetters[i] = new LinkedList<Integer>();
-			
-		words = new LinkedList<Word>();
+		
+		words = new WordTable();
+		candidates = new HashMap<Word, ArrayList<Candidate>>();
 	}
 	
 	void newGame(int numPlayers, String[] playerNames, int[] newTiles)
 	{
 		charCounts = new int[NUM_LETTERS];
+		pileCounts = LetterCounts.NONE;
 		for (int i = 0; i < NUM_LETTERS; i++)
 			currentLetters[i].clear();
 		
 		words.clear();
 		words.add(EMPTY);
+		candidates.clear();
 		
 		super.newGame(numPlayers, playerNames, newTiles);
 	}
@@ -271,20 +302,29 @@ class ComputerGame extends Game
 		
 		super.flipTile(index);
 		charCounts[letter]++;
+		pileCounts = pileCounts.plus(letter);
 		currentLetters[letter].add(index);
+		
+		// only words that need the new tile can have become playable
+		for (Word word : words)
+			addCandidates(word, letter);
 	}
 	
 	void processChange(ChangeData data)
 	{
-		int[] charWatch = new int[NUM_LETTERS];
-		
-		if (data.stolen != EMPTY)
-			words.remove(data.stolen);
+		// the parsed words are new objects, so find the one actually on the table
+		if (data.stolen != null)
+		{
+			Word stolen = wordPiles[data.playerStolen].get(data.stolenIndex);
+			words.remove(stolen);
+			candidates.remove(stolen);
+		}
 		
-		Word taken = new Word(data.taken.word, data.playerTaken);
-		words.add(taken);
+		words.add(data.taken);
 		
-		updateCharCount(data.taken.word, data.stolen == null ? "" : data.stolen.word, charWatch, data);
+		updateCharCount(data.taken, data.stolen == null ? EMPTY : data.stolen);
+		removeCandidates();
+		addCandidates(data.taken, -1);
 		
 		super.processChange(data);
 	}
@@ -296,6 +336,28 @@ class ComputerGame extends Game
 			words.add(lastSteal.stolen);
 		
 		super.undo(lastSteal);
+		
+		candidates.clear();
+		for (Word word : words)
+			addCandidates(word, -1);
+	}
+	
+	void readSnapshot(Frame frame) throws IOException
+	{
+		super.readSnapshot(frame);
+		
+		for (Tile tile : tiles)
+			if (tile.inPile() && tile.flipped())
+			{
+				charCounts[tile.letter]++;
+				pileCounts = pileCounts.plus(tile.letter);
+				currentLetters[tile.letter].add(tile.index);
+			}
+		for (ArrayList<Word> pile : wordPiles)
+			for (Word word : pile)
+				words.add(word);
+		for (Word word : words)
+			addCandidates(word, -1);
 	}
 	
 	boolean canTake(String newWord)
@@ -303,53 +365,91 @@ class ComputerGame extends Game
 		if (newWord.length() < 3)
 			return false;
 		
-		for (int i = 0; i < words.size(); i++)
-			if (words != null && isStealable(newWord, words.get(i).word)) // FIX THIS LATER
+		LetterCounts counts = Dictionary.letterCounts(newWord);
+		for (Word word : words.candidates(counts, pileCounts))
+			if (isStealable(newWord.length(), counts, word))
 				return true;
 				
 		return false;
 	}
 	
-	private boolean isStealable(String newWord, String word)
+	// every word that can currently be taken from the pile or stolen, longest first
+	ArrayList<String> legalTakes()
 	{
-		if (word.length() >= newWord.length())
-			return false;
-			
-		int[] table = new int[NUM_LETTERS];
+		LinkedHashSet<String> takes = new LinkedHashSet<String>();
+		
+		for (ArrayList<Candidate> list : candidates.values())
+			for (Candidate candidate : list)
+				takes.add(candidate.word);
 		
-		for (char c : newWord.toCharArray())
-			table[c - 'A']++;
-		for (char c : word.toCharArray())
+		ArrayList<String> output = new ArrayList<String>(takes);
+		Collections.sort(output, new Comparator<String>()
 		{
-			table[c - 'A']--;
-			if (table[c - 'A'] < 0)
-				return false;
+			public int compare(String a, String b)
+			{
+				return b.length() - a.length();
+			}
+		});
+		return output;
+	}
+	
+	private boolean isStealable(int length, LetterCounts counts, Word word)
+	{
+		return word.length() < length && counts.contains(word.counts) && pileCounts.containsDifference(counts, word.counts);
+	}
+	
+	// adds the words that can be made from word and the pile; if letter is not
+	// -1, only the ones that use every copy of that letter in the pile
+	private void addCandidates(Word word, int letter)
+	{
+		ArrayList<Candidate> list = candidates.get(word);
+		if (list == null)
+		{
+			list = new ArrayList<Candidate>();
+			candidates.put(word, list);
 		}
-		for (int i = 0; i < NUM_LETTERS; i++)
-			if (table[i] > charCounts[i])
-				return false;
-				
-		return true;
+		
+		for (String newWord : StealGraph.steals(word.word, charCounts, letter))
+			list.add(new Candidate(newWord, word.counts));
 	}
-
-	private void updateCharCount(String newWord, String toSteal, int[] charWatch, ChangeData data)
+	
+	// drops the candidates that needed pile letters that were just used up; the
+	// rest still fit, since the pile only shrank
+	private void removeCandidates()
+	{
+		for (ArrayList<Candidate> list : candidates.values())
+		{
+			Iterator<Candidate> it = list.iterator();
+			while (it.hasNext())
+				if (!pileCounts.contains(it.next().extra))
+					it.remove();
+		}
+	}
+	
+	// the tile moves come from the server, so only the letter counts change here
+	private void updateCharCount(Word newWord, Word toSteal)
 	{
-		int[] table = new int[NUM_LETTERS];
-		for (char c : newWord.toCharArray())
-			table[c - 'A']++;
-		for (char c : toSteal.toCharArray())
-			table[c - 'A']--;
+		LetterCounts used = newWord.counts.minus(toSteal.counts);
+		pileCounts = pileCounts.minus(used);
 		for (int i = 0; i < NUM_LETTERS; i++)
 		{
-			charCounts[i] -= table[i];
-			for (int j = 0; j < table[i]; j++)
-			{
-				int index = currentLetters[i].removeFirst();
-				int movedIndex = data.taken.indexOf(i + 'A', charWatch[i]);
-				charWatch[i] = movedIndex + 1;
-				data.tileMoves.add(new int[] {index, -1, 0, 0, data.playerTaken,
-					(data.playerStolen == data.playerTaken ? data.stolenIndex : wordPiles[data.playerTaken].size()), movedIndex});
-			}
+			int count = used.count(i);
+			charCounts[i] -= count;
+			for (int j = 0; j < count; j++)
+				currentLetters[i].removeFirst();
 		}
 	}
+}
+
+class Candidate
+{
+	final String word;
+	final LetterCounts extra;
+	
+	// extra holds the letters that have to come from the pile
+	Candidate(String word_, LetterCounts base)
+	{
+		word = word_;
+		extra = Dictionary.letterCounts(word).minus(base);
+	}
 }
\ No newline at end of file
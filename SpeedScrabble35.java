@@ -3,6 +3,13 @@
 import java.util.*;
 import java.io.*;
 import java.net.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.charset.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.zip.*;
+import javax.management.*;
 import java.awt.*;
 import java.awt.event.*;
 import java.awt.image.*;
@@ -14,123 +21,201 @@ import javax.swing.Timer;
 abstract class Client
 {
 	static final int WAIT_TIME = 60000; // in milliseconds
+	static final int RECONNECT_ATTEMPTS = 5;
+	static final int RECONNECT_WAIT = 2000; // in milliseconds
 	
 	PrintWriter writer;
-	BufferedReader reader;
+	OutputStream output;
+	DataInputStream input;
 	
 	Game game;
 	final String name;
 	int playerIndex;
-	boolean open;
+	volatile boolean open;
+	boolean binary, delta;
+	
+	// for resuming the seat after a dropped connection
+	byte[] address;
+	int port;
+	String room;
+	long token;
+	int lastSeq;
 	
 	Client(String name)
 	{
 		this.name = name;
 		game = new Game();
+		binary = true;
+		delta = true;
 	}
 	
 	void connect(byte[] address, int port) throws IOException
+	{
+		connect(address, port, null, 0);
+	}
+	
+	// joins the named room, or the server's default room if room is null; a room
+	// that does not exist yet is created for numPlayers players
+	void connect(byte[] address, int port, String room, int numPlayers) throws IOException
+	{
+		this.address = address;
+		this.port = port;
+		this.room = (room == null ? Server.DEFAULT_ROOM : room.replace(' ', '\0'));
+		
+		String request = "NEW_CLIENT " + name.replace(' ', '\0');
+		if (binary || delta)
+			request += " " + this.room + " " + numPlayers + capabilities();
+		else if (room != null)
+			request += " " + this.room + (numPlayers > 0 ? " " + numPlayers : "");
+		handshake(request);
+		
+		open = true;
+		startListener();
+	}
+	
+	private String capabilities()
+	{
+		return (binary ? " " + Frame.BINARY : "") + (delta ? " " + Frame.DELTA : "");
+	}
+	
+	// opens a new socket, sends the first line and reads the server's WELCOME
+	private void handshake(String request) throws IOException
 	{
 		Socket socket = new Socket();
 		
 		socket.connect(new InetSocketAddress(InetAddress.getByAddress(address), port), WAIT_TIME);
 		
-		writer = new PrintWriter(socket.getOutputStream(), true);
-		reader = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+		synchronized (this)
+		{
+			output = socket.getOutputStream();
+			writer = new PrintWriter(output, true);
+			input = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+		}
 		
-		writer.println("NEW_CLIENT " + name.replace(' ', '\0'));
+		writer.println(request);
 		
 		String[] codes = getCodes();
-		// WELCOME [player index]
-		if (!codes[0].equals("WELCOME"))
+		// WELCOME [player index] [reconnect token] [capability] ...
+		if (codes == null || !codes[0].equals("WELCOME"))
 		{
 			socket.close();
 			throw new IOException();
 		}		
 		playerIndex = Integer.parseInt(codes[1]);
+		token = Long.parseLong(codes[2]);
+		binary = delta = false;
+		for (int i = 3; i < codes.length; i++)
+		{
+			if (codes[i].equals(Frame.BINARY))
+				binary = true;
+			else if (codes[i].equals(Frame.DELTA))
+				delta = true;
+		}
+	}
+	
+	// takes the seat back after the connection dropped; the server replays what
+	// was missed since lastSeq, or sends a snapshot if that is too far back
+	private boolean reconnect()
+	{
+		if (!binary)
+			return false;
 		
-		startListener();
-		
-		open = true;
+		for (int i = 0; i < RECONNECT_ATTEMPTS && open; i++)
+		{
+			try
+			{
+				Thread.sleep(RECONNECT_WAIT);
+				handshake("RECONNECT " + room + " " + playerIndex + " " + token + " " + lastSeq + capabilities());
+				if (binary)
+					return true;
+			}
+			catch (InterruptedException e)
+			{
+				return false;
+			}
+			catch (IOException e) {}
+		}
+		return false;
 	}
 	
 	void close() throws IOException
 	{
+		open = false;
+		
 		if (writer != null)
 			writer.close();
-		if (reader != null)
-			reader.close();
-		
-		open = false;
+		if (input != null)
+			input.close();
 	}
 	
 	void flipTile()
 	{
-		writer.println("FLIP");
+		if (binary)
+			send(new Frame(Frame.FLIP));
+		else
+			writer.println("FLIP");
 	}
 	
 	void attemptTake(String word)
 	{
-		writer.println("TAKE " + word);
+		if (binary)
+			send(new Frame(Frame.TAKE).writeWord(word));
+		else
+			writer.println("TAKE " + word);
 	}
 	
 	void requestNewGame()
 	{
-		writer.println("NEW");
+		if (binary)
+			send(new Frame(Frame.NEW));
+		else
+			writer.println("NEW");
 	}
 	
 	void requestRejection(int index)
 	{
-		writer.println("REJECT " + index);
+		if (binary)
+			send(new Frame(Frame.REJECT).writeVarint(index));
+		else
+			writer.println("REJECT " + index);
 	}
 	
 	void sendMessage(String s)
 	{
-		writer.println("MESSAGE " + playerIndex + " " + s.replace(' ', '\0'));
+		if (binary)
+			send(new Frame(Frame.MESSAGE).writeVarint(playerIndex).writeText(s));
+		else
+			writer.println("MESSAGE " + playerIndex + " " + s.replace(' ', '\0'));
 	}
 	
-	abstract void startListener();
-	
-	protected String[] getCodes() throws IOException
+	private synchronized void send(Frame frame)
 	{
-		String line = reader.readLine();
-		return (line == null ? null : line.split(" "));
+		try
+		{
+			output.write(frame.toBytes());
+		}
+		catch (IOException e) {}
 	}
 	
-	protected void newGame(String[] codes)
-	{
-		int numPlayers = Integer.parseInt(codes[1]);
-		String[] playerNames = new String[numPlayers];
-		for (int i = 0; i < numPlayers; i++)
-			playerNames[i] = codes[i + 2].replace('\0', ' ');
-		int[] newTiles = new int[Game.NUM_TILES];
-		for (int i = 0; i < Game.NUM_TILES; i++)
-			newTiles[i] = Integer.parseInt(codes[i + numPlayers + 2]);
-		game.newGame(numPlayers, playerNames, newTiles);
-	}
-}
-
-class HumanClient extends Client
-{
-	final GameFrame frame;
+	abstract void onNewGame();
 	
-	HumanClient (String name)
-	{
-		super(name);
-		frame = new GameFrame(this);
-	}
+	abstract void onFlip(int tileIndex);
 	
-	void connect(byte[] address, int port) throws IOException
-	{
-		super.connect(address, port);
-		frame.setVisible(true);
-	}
+	abstract void onTake(ChangeData data);
 	
-	void close() throws IOException
-	{
-		frame.destroy();
-		super.close();
-	}
+	abstract void onRejectRequest(int index);
+	
+	abstract void onUndo(String word);
+	
+	abstract void onMessage(int player, String message);
+	
+	abstract void onShow(String message);
+	
+	abstract void onSnapshot();
+	
+	abstract void onThrottle(int millis);
+	
+	abstract void onDisconnect();
 	
 	void startListener()
 	{
@@ -142,317 +227,630 @@ class HumanClient extends Client
 				{
 					try
 					{
-						String[] codes = getCodes();
-						
-						if (codes == null)
-							throw new IOException();
-						
-						if (codes[0].equals("NEW"))
-						{
-							// NEW [numPlayers] [player name] [player name] ... [letter] [letter] [letter] ...
-							newGame(codes);
-							if (!frame.started) frame.start();
-							frame.showMessage("NEW GAME STARTED");
-							frame.changeAll();
-						}
-						else if (codes[0].equals("FLIP"))
-						{
-							// FLIP [letter index]
-							game.flipTile(Integer.parseInt(codes[1]));
-							frame.changePile();
-						}
-						else if (codes[0].equals("TAKE"))
-						{
-							// TAKE [change data]
-							ChangeData data = ChangeData.parse(codes[1].replace('\0', ' '));
-							game.processChange(data);
-							frame.changeWordPanels(data.playerTaken, data.playerStolen);
-						}
-						else if (codes[0].equals("REJECT_REQ"))
-						{
-							// REJECT_REQ [ChangeData index]
-							int index = Integer.parseInt(codes[1]);
-							ChangeData data = game.lastSteals.get(index);
-							
-							frame.openRejectConfirmBox(data.stolen, data.taken, index);
-						}
-						else if (codes[0].equals("UNDO"))
-						{
-							// UNDO [ChangeData index] [word]
-							game.undoChanges(Integer.parseInt(codes[1]));
-							frame.showMessage("\"" + codes[2] + "\" REJECTED");
-							frame.changeAll();
-						}
-						else if (codes[0].equals("MESSAGE"))
-						{
-							// MESSAGE [player index] [message]
-							frame.newMessage(game.playerNames[Integer.parseInt(codes[1])], codes[2].replace('\0', ' '));
-						}
-						else if (codes[0].equals("SHOW"))
-						{
-							// SHOW [message]
-							frame.showMessage(codes[1].replace('\0', ' '));
-						}
+						if (binary)
+							receive(readFrame());
+						else
+							receive(getCodes());
 					}
 					catch (IOException e)
 					{
-						JOptionPane.showMessageDialog(frame, "Disconnected to server.");
-						
-						try
-						{
-							close();
-						}
-						catch (IOException e_)
-						{
-							JOptionPane.showMessageDialog(frame, "Error.");
-						}
+						if (open && reconnect())
+							continue;
 						
+						onDisconnect();
 						return;
 					}
 				}
 			}
 		}.start();
 	}
-}
-
-class ComputerClient extends Client
-{
-	static final int SPEED = 3;
-	static final int FLIP_TIME = 0;
 	
-	boolean started;
-
-	ComputerClient(String name)
+	private void receive(String[] codes) throws IOException
 	{
-		super(name);
-		game = new ComputerGame();
+		if (codes == null)
+			throw new IOException();
+		
+		if (codes[0].equals("NEW"))
+		{
+			// NEW [numPlayers] [player name] [player name] ... [letter] [letter] [letter] ... [seq]
+			int numPlayers = Integer.parseInt(codes[1]);
+			String[] playerNames = new String[numPlayers];
+			for (int i = 0; i < numPlayers; i++)
+				playerNames[i] = codes[i + 2].replace('\0', ' ');
+			int[] newTiles = new int[Game.NUM_TILES];
+			for (int i = 0; i < Game.NUM_TILES; i++)
+				newTiles[i] = Integer.parseInt(codes[i + numPlayers + 2]);
+			game.newGame(numPlayers, playerNames, newTiles);
+			lastSeq = Integer.parseInt(codes[codes.length - 1]);
+			onNewGame();
+		}
+		else if (codes[0].equals("FLIP"))
+		{
+			// FLIP [letter index] [seq]
+			int tileIndex = Integer.parseInt(codes[1]);
+			game.flipTile(tileIndex);
+			lastSeq = Integer.parseInt(codes[2]);
+			onFlip(tileIndex);
+		}
+		else if (codes[0].equals("TAKE"))
+		{
+			// TAKE [change data] [seq]
+			ChangeData data = ChangeData.parse(codes[1].replace('\0', ' '));
+			game.processChange(data);
+			lastSeq = Integer.parseInt(codes[2]);
+			onTake(data);
+		}
+		else if (codes[0].equals("STEAL"))
+		{
+			// STEAL [change delta] [seq]
+			ChangeData data = ChangeData.parseDelta(codes[1].replace('\0', ' '));
+			game.buildMoves(data);
+			game.processChange(data);
+			lastSeq = Integer.parseInt(codes[2]);
+			onTake(data);
+		}
+		else if (codes[0].equals("REJECT_REQ"))
+		{
+			// REJECT_REQ [ChangeData index]
+			onRejectRequest(Integer.parseInt(codes[1]));
+		}
+		else if (codes[0].equals("UNDO"))
+		{
+			// UNDO [ChangeData index] [word] [seq]
+			game.undoChanges(Integer.parseInt(codes[1]));
+			lastSeq = Integer.parseInt(codes[3]);
+			onUndo(codes[2]);
+		}
+		else if (codes[0].equals("MESSAGE"))
+		{
+			// MESSAGE [player index] [message]
+			onMessage(Integer.parseInt(codes[1]), codes[2].replace('\0', ' '));
+		}
+		else if (codes[0].equals("SHOW"))
+		{
+			// SHOW [message]
+			onShow(codes[1].replace('\0', ' '));
+		}
+		else if (codes[0].equals("THROTTLE"))
+		{
+			// THROTTLE [milliseconds until takes are accepted again]
+			onThrottle(Integer.parseInt(codes[1]));
+		}
 	}
 	
-	void startListener()
+	private void receive(Frame frame) throws IOException
 	{
-		new Thread()
-		{
-			public void run()
-			{
-				while (true)
-				{
-					try
-					{
-						String[] codes = getCodes();
-						
-						if (codes == null)
-							throw new IOException();
-						
-						if (codes[0].equals("NEW"))
-						{
-							// NEW [numPlayers] [player name] [player name] ... [letter] [letter] [letter] ...
-							newGame(codes);
-							if (!started) started = true;
-						}
-						else if (codes[0].equals("FLIP"))
-						{
-							// FLIP [letter index]
-							game.flipTile(Integer.parseInt(codes[1]));
-							
-						}
-						else if (codes[0].equals("TAKE"))
-						{
-							// TAKE [change data]
-							ChangeData data = ChangeData.parse(codes[1].replace('\0', ' '));
-							game.processChange(data);
-							
-						}
-						else if (codes[0].equals("REJECT_REQ"))
-						{
-							// REJECT_REQ [ChangeData index]
-							int index = Integer.parseInt(codes[1]);						
-							requestRejection(index);
-						}
-						else if (codes[0].equals("UNDO"))
-						{
-							// UNDO [ChangeData index] [word]
-							game.undoChanges(Integer.parseInt(codes[1]));
-							
-						}
-						else if (codes[0].equals("SHOW"))
-						{
-							// SHOW [message]
-							if (codes[1].equals("New game requested!".replace(' ', '\0')))
-								requestNewGame();
-						}
-					}
-					catch (IOException e)
-					{
-						try
-						{
-							started = false;
-							close();
-						}
-						catch (IOException e_) {}
-						
-						return;
-					}
-				}
-			}
-		}.start();
+		byte type = frame.type();
 		
-		new Thread()
+		if (type == Frame.NEW)
 		{
-			public void run()
-			{
-				try
-				{
-					while (!started)
-						try { Thread.sleep(100); } catch (InterruptedException e) {}
-					while (started)
-					{
-						int index = (int)(Math.random() * Dictionary.size());
-						if (((ComputerGame)game).canTake(Dictionary.getWord(index)))
-						{
-							//System.out.println("WORD FOUND: " + Dictionary.getWord(index));
-							//System.out.println(Arrays.toString(((ComputerGame)game).charCounts));
-							attemptTake(Dictionary.getWord(index));
-						}
-						
-						if (playerIndex == game.currentPlayer && game.remainingTime() <= Math.max(0, Game.MAX_FLIP_TIME - FLIP_TIME))
-						{
-							flipTile();
-						}
-						
-						index++;
-						if (index % SPEED == 0)
-							try { Thread.sleep(1); } catch (InterruptedException e) {}
-						if (index >= Dictionary.size())
-						{
-							index = 0;
-							//System.out.println(Arrays.toString(((ComputerGame)game).charCounts));
-						}
-					}
-				}
-				catch (Exception e)
-				{
-					e.printStackTrace();
-					return;
-				}
-			}
-		}.start();
+			int numPlayers = frame.readVarint();
+			String[] playerNames = new String[numPlayers];
+			for (int i = 0; i < numPlayers; i++)
+				playerNames[i] = frame.readText();
+			game.newGame(numPlayers, playerNames, frame.readLetters(Game.NUM_TILES));
+			lastSeq = frame.readVarint();
+			onNewGame();
+		}
+		else if (type == Frame.FLIP)
+		{
+			int tileIndex = frame.readVarint();
+			game.flipTile(tileIndex);
+			lastSeq = frame.readVarint();
+			onFlip(tileIndex);
+		}
+		else if (type == Frame.TAKE)
+		{
+			ChangeData data = ChangeData.read(frame);
+			game.processChange(data);
+			lastSeq = frame.readVarint();
+			onTake(data);
+		}
+		else if (type == Frame.STEAL)
+		{
+			ChangeData data = ChangeData.readDelta(frame);
+			game.buildMoves(data);
+			game.processChange(data);
+			lastSeq = frame.readVarint();
+			onTake(data);
+		}
+		else if (type == Frame.REJECT_REQ)
+			onRejectRequest(frame.readVarint());
+		else if (type == Frame.UNDO)
+		{
+			game.undoChanges(frame.readVarint());
+			String word = frame.readWord();
+			lastSeq = frame.readVarint();
+			onUndo(word);
+		}
+		else if (type == Frame.SNAPSHOT)
+		{
+			game.readSnapshot(frame);
+			lastSeq = frame.readVarint();
+			onSnapshot();
+		}
+		else if (type == Frame.MESSAGE)
+		{
+			int player = frame.readVarint();
+			onMessage(player, frame.readText());
+		}
+		else if (type == Frame.SHOW)
+			onShow(frame.readText());
+		else if (type == Frame.THROTTLE)
+			onThrottle(frame.readVarint());
 	}
-}
-
-class ComputerGame extends Game
-{
-	int[] charCounts;
-	LinkedList<Integer>[] currentLetters;
-	LinkedList<Word> words;
 	
-	ComputerGame()
+	protected String[] getCodes() throws IOException
 	{
-		currentLetters = (LinkedList<Integer>[]) new LinkedList[NUM_LETTERS];
-		for (int i = 0; i < NUM_LETTERS; i++)
-			currentLetters[i] = new LinkedList<Integer>();
-			
-		words = new LinkedList<Word>();
+		String line = readLine();
+		return (line == null ? null : line.split(" "));
 	}
 	
-	void newGame(int numPlayers, String[] playerNames, int[] newTiles)
+	// reads up to the next '\n' without reading ahead, so the binary frames that
+	// follow the handshake stay in the stream
+	private String readLine() throws IOException
 	{
-		charCounts = new int[NUM_LETTERS];
-		for (int i = 0; i < NUM_LETTERS; i++)
-			currentLetters[i].clear();
-		
-		words.clear();
-		words.add(EMPTY);
-		
-		super.newGame(numPlayers, playerNames, newTiles);
+		ByteArrayOutputStream line = new ByteArrayOutputStream();
+		while (true)
+		{
+			int b = input.read();
+			if (b == -1)
+				return (line.size() == 0 ? null : line.toString("UTF-8"));
+			if (b == '\n')
+				return line.toString("UTF-8");
+			if (b != '\r')
+				line.write(b);
+		}
 	}
 	
-	void flipTile(int index)
+	private Frame readFrame() throws IOException
 	{
-		int letter = tiles[index].letter;
+		int length = Frame.readVarint(input);
+		if (length <= 0 || length > Connection.MAX_LINE)
+			throw new IOException("bad frame length " + length);
 		
-		super.flipTile(index);
-		charCounts[letter]++;
-		currentLetters[letter].add(index);
+		byte[] data = new byte[length];
+		input.readFully(data);
+		return new Frame(data);
 	}
+}
+
+class HumanClient extends Client
+{
+	final GameFrame frame;
 	
-	void processChange(ChangeData data)
+	HumanClient (String name)
 	{
-		int[] charWatch = new int[NUM_LETTERS];
-		
-		if (data.stolen != EMPTY)
-			words.remove(data.stolen);
-		
-		Word taken = new Word(data.taken.word, data.playerTaken);
-		words.add(taken);
-		
-		updateCharCount(data.taken.word, data.stolen == null ? "" : data.stolen.word, charWatch, data);
-		
-		super.processChange(data);
+		super(name);
+		frame = new GameFrame(this);
 	}
 	
-	void undo(ChangeData lastSteal)
+	void connect(byte[] address, int port, String room, int numPlayers) throws IOException
 	{
-		words.remove(lastSteal.taken);
-		if (lastSteal.stolen != null)
-			words.add(lastSteal.stolen);
-		
-		super.undo(lastSteal);
+		super.connect(address, port, room, numPlayers);
+		frame.setVisible(true);
 	}
 	
-	boolean canTake(String newWord)
+	void close() throws IOException
 	{
-		if (newWord.length() < 3)
-			return false;
+		frame.destroy();
+		super.close();
+	}
+	
+	void onNewGame()
+	{
+		if (!frame.started) frame.start();
+		frame.showMessage("NEW GAME STARTED");
+		frame.changeAll();
+	}
+	
+	void onFlip(int tileIndex)
+	{
+		frame.changePile();
+	}
+	
+	void onTake(ChangeData data)
+	{
+		frame.changeWordPanels(data.playerTaken, data.playerStolen);
+	}
+	
+	void onRejectRequest(int index)
+	{
+		ChangeData data = game.lastSteals.get(index);
+		frame.openRejectConfirmBox(data.stolen, data.taken, index);
+	}
+	
+	void onUndo(String word)
+	{
+		frame.showMessage("\"" + word + "\" REJECTED");
+		frame.changeAll();
+	}
+	
+	void onMessage(int player, String message)
+	{
+		frame.newMessage(game.playerNames[player], message);
+	}
+	
+	void onShow(String message)
+	{
+		frame.showMessage(message);
+	}
+	
+	void onSnapshot()
+	{
+		if (!frame.started) frame.start();
+		frame.changeAll();
+	}
+	
+	void onThrottle(int millis)
+	{
+		frame.showMessage("Too many words! Wait a moment.");
+	}
+	
+	void onDisconnect()
+	{
+		JOptionPane.showMessageDialog(frame, "Disconnected to server.");
 		
-		for (int i = 0; i < words.size(); i++)
-			if (words != null && isStealable(newWord, words.get(i).word)) // FIX THIS LATER
-				return true;
-				
-		return false;
+		try
+		{
+			close();
+		}
+		catch (IOException e_)
+		{
+			JOptionPane.showMessageDialog(frame, "Error.");
+		}
+	}
+}
+
+class ComputerClient extends Client
+{
+	static final int REACTION_TIME = 1500; // in milliseconds
+	static final int FLIP_TIME = 0;
+	
+	boolean started;
+	
+	ScheduledExecutorService reactions;
+	HashMap<String, ScheduledFuture<?>> pendingTakes;
+	ScheduledFuture<?> pendingFlip;
+	volatile Set<String> currentTakes;
+	volatile int generation;
+	long throttledUntil;
+	
+	ComputerClient(String name)
+	{
+		super(name);
+		game = new ComputerGame();
+		reactions = Executors.newSingleThreadScheduledExecutor();
+		pendingTakes = new HashMap<String, ScheduledFuture<?>>();
+		currentTakes = new HashSet<String>();
 	}
 	
-	private boolean isStealable(String newWord, String word)
+	void close() throws IOException
 	{
-		if (word.length() >= newWord.length())
-			return false;
+		reactions.shutdownNow();
+		super.close();
+	}
+	
+	void onNewGame()
+	{
+		if (!started) started = true;
+		planMoves();
+	}
+	
+	void onFlip(int tileIndex)
+	{
+		planMoves();
+	}
+	
+	void onTake(ChangeData data)
+	{
+		planMoves();
+	}
+	
+	void onRejectRequest(int index)
+	{
+		requestRejection(index);
+	}
+	
+	void onUndo(String word)
+	{
+		planMoves();
+	}
+	
+	void onMessage(int player, String message) {}
+	
+	void onShow(String message)
+	{
+		if (message.equals("New game requested!"))
+			requestNewGame();
+	}
+	
+	void onSnapshot()
+	{
+		started = true;
+		planMoves();
+	}
+	
+	// the server dropped a take, so every planned take waits until it accepts them again
+	void onThrottle(int millis)
+	{
+		for (ScheduledFuture<?> reaction : pendingTakes.values())
+			reaction.cancel(false);
+		pendingTakes.clear();
+		
+		throttledUntil = System.currentTimeMillis() + millis;
+		planMoves();
+	}
+	
+	void onDisconnect()
+	{
+		try
+		{
+			started = false;
+			close();
+		}
+		catch (IOException e_) {}
+	}
+	
+	// called by the listener thread whenever the game state changes. Words that
+	// were already planned keep their reaction time; words that are no longer
+	// legal are dropped.
+	private void planMoves()
+	{
+		final int current = ++generation;
+		
+		ArrayList<String> takes = started ? ((ComputerGame)game).legalTakes() : new ArrayList<String>();
+		currentTakes = new HashSet<String>(takes);
+		
+		Iterator<Map.Entry<String, ScheduledFuture<?>>> it = pendingTakes.entrySet().iterator();
+		while (it.hasNext())
+		{
+			Map.Entry<String, ScheduledFuture<?>> entry = it.next();
+			if (!currentTakes.contains(entry.getKey()))
+			{
+				entry.getValue().cancel(false);
+				it.remove();
+			}
+		}
+		
+		long wait = Math.max(0, throttledUntil - System.currentTimeMillis());
+		for (final String word : takes)
+		{
+			if (pendingTakes.containsKey(word))
+				continue;
 			
-		int[] table = new int[NUM_LETTERS];
+			ScheduledFuture<?> reaction = schedule(new Runnable()
+			{
+				public void run()
+				{
+					if (currentTakes.contains(word))
+						attemptTake(word);
+				}
+			}, wait + REACTION_TIME);
+			
+			if (reaction != null)
+				pendingTakes.put(word, reaction);
+		}
 		
-		for (char c : newWord.toCharArray())
-			table[c - 'A']++;
-		for (char c : word.toCharArray())
+		if (pendingFlip != null)
+			pendingFlip.cancel(false);
+		pendingFlip = null;
+		
+		if (started && playerIndex == game.currentPlayer)
 		{
-			table[c - 'A']--;
-			if (table[c - 'A'] < 0)
-				return false;
+			long flipTime = game.lastFlipTime + 1000L * Math.min(FLIP_TIME, Game.MAX_FLIP_TIME);
+			pendingFlip = schedule(new Runnable()
+			{
+				public void run()
+				{
+					if (generation == current)
+						flipTile();
+				}
+			}, Math.max(0, flipTime - System.currentTimeMillis()));
+		}
+	}
+	
+	private ScheduledFuture<?> schedule(Runnable reaction, long delay)
+	{
+		try
+		{
+			return reactions.schedule(reaction, delay, TimeUnit.MILLISECONDS);
+		}
+		catch (RejectedExecutionException e)
+		{
+			return null;
 		}
-		for (int i = 0; i < NUM_LETTERS; i++)
-			if (table[i] > charCounts[i])
-				return false;
-				
-		return true;
 	}
+}
 
-	private void updateCharCount(String newWord, String toSteal, int[] charWatch, ChangeData data)
+class ComputerGame extends Game
+{
+	int[] charCounts;
+	LetterCounts pileCounts;
+	LinkedList<Integer>[] currentLetters;
+	WordTable words;
+	HashMap<Word, ArrayList<Candidate>> candidates;
+	
+	ComputerGame()
 	{
-		int[] table = new int[NUM_LETTERS];
-		for (char c : newWord.toCharArray())
-			table[c - 'A']++;
-		for (char c : toSteal.toCharArray())
-			table[c - 'A']--;
+		currentLetters = (LinkedList<Integer>[]) new LinkedList[NUM_LETTERS];
+		for (int i = 0; i < NUM_LETTERS; i++)
+			currentLetters[i] = new LinkedList<Integer>();
+		
+		words = new WordTable();
+		candidates = new HashMap<Word, ArrayList<Candidate>>();
+	}
+	
+	void newGame(int numPlayers, String[] playerNames, int[] newTiles)
+	{
+		charCounts = new int[NUM_LETTERS];
+		pileCounts = LetterCounts.NONE;
 		for (int i = 0; i < NUM_LETTERS; i++)
+			currentLetters[i].clear();
+		
+		words.clear();
+		words.add(EMPTY);
+		candidates.clear();
+		
+		super.newGame(numPlayers, playerNames, newTiles);
+	}
+	
+	void flipTile(int index)
+	{
+		int letter = tiles[index].letter;
+		
+		super.flipTile(index);
+		charCounts[letter]++;
+		pileCounts = pileCounts.plus(letter);
+		currentLetters[letter].add(index);
+		
+		// only words that need the new tile can have become playable
+		for (Word word : words)
+			addCandidates(word, letter);
+	}
+	
+	void processChange(ChangeData data)
+	{
+		// the parsed words are new objects, so find the one actually on the table
+		if (data.stolen != null)
+		{
+			Word stolen = wordPiles[data.playerStolen].get(data.stolenIndex);
+			words.remove(stolen);
+			candidates.remove(stolen);
+		}
+		
+		words.add(data.taken);
+		
+		updateCharCount(data.taken, data.stolen == null ? EMPTY : data.stolen);
+		removeCandidates();
+		addCandidates(data.taken, -1);
+		
+		super.processChange(data);
+	}
+	
+	void undo(ChangeData lastSteal)
+	{
+		words.remove(lastSteal.taken);
+		if (lastSteal.stolen != null)
+			words.add(lastSteal.stolen);
+		
+		super.undo(lastSteal);
+		
+		candidates.clear();
+		for (Word word : words)
+			addCandidates(word, -1);
+	}
+	
+	void readSnapshot(Frame frame) throws IOException
+	{
+		super.readSnapshot(frame);
+		
+		for (Tile tile : tiles)
+			if (tile.inPile() && tile.flipped())
+			{
+				charCounts[tile.letter]++;
+				pileCounts = pileCounts.plus(tile.letter);
+				currentLetters[tile.letter].add(tile.index);
+			}
+		for (ArrayList<Word> pile : wordPiles)
+			for (Word word : pile)
+				words.add(word);
+		for (Word word : words)
+			addCandidates(word, -1);
+	}
+	
+	boolean canTake(String newWord)
+	{
+		if (newWord.length() < 3)
+			return false;
+		
+		LetterCounts counts = Dictionary.letterCounts(newWord);
+		for (Word word : words.candidates(counts, pileCounts))
+			if (isStealable(newWord.length(), counts, word))
+				return true;
+				
+		return false;
+	}
+	
+	// every word that can currently be taken from the pile or stolen, longest first
+	ArrayList<String> legalTakes()
+	{
+		LinkedHashSet<String> takes = new LinkedHashSet<String>();
+		
+		for (ArrayList<Candidate> list : candidates.values())
+			for (Candidate candidate : list)
+				takes.add(candidate.word);
+		
+		ArrayList<String> output = new ArrayList<String>(takes);
+		Collections.sort(output, new Comparator<String>()
 		{
-			charCounts[i] -= table[i];
-			for (int j = 0; j < table[i]; j++)
+			public int compare(String a, String b)
 			{
-				int index = currentLetters[i].removeFirst();
-				int movedIndex = data.taken.indexOf(i + 'A', charWatch[i]);
-				charWatch[i] = movedIndex + 1;
-				data.tileMoves.add(new int[] {index, -1, 0, 0, data.playerTaken,
-					(data.playerStolen == data.playerTaken ? data.stolenIndex : wordPiles[data.playerTaken].size()), movedIndex});
+				return b.length() - a.length();
 			}
+		});
+		return output;
+	}
+	
+	private boolean isStealable(int length, LetterCounts counts, Word word)
+	{
+		return word.length() < length && counts.contains(word.counts) && pileCounts.containsDifference(counts, word.counts);
+	}
+	
+	// adds the words that can be made from word and the pile; if letter is not
+	// -1, only the ones that use every copy of that letter in the pile
+	private void addCandidates(Word word, int letter)
+	{
+		ArrayList<Candidate> list = candidates.get(word);
+		if (list == null)
+		{
+			list = new ArrayList<Candidate>();
+			candidates.put(word, list);
+		}
+		
+		for (String newWord : StealGraph.steals(word.word, charCounts, letter))
+			list.add(new Candidate(newWord, word.counts));
+	}
+	
+	// drops the candidates that needed pile letters that were just used up; the
+	// rest still fit, since the pile only shrank
+	private void removeCandidates()
+	{
+		for (ArrayList<Candidate> list : candidates.values())
+		{
+			Iterator<Candidate> it = list.iterator();
+			while (it.hasNext())
+				if (!pileCounts.contains(it.next().extra))
+					it.remove();
 		}
 	}
+	
+	// the tile moves come from the server, so only the letter counts change here
+	private void updateCharCount(Word newWord, Word toSteal)
+	{
+		LetterCounts used = newWord.counts.minus(toSteal.counts);
+		pileCounts = pileCounts.minus(used);
+		for (int i = 0; i < NUM_LETTERS; i++)
+		{
+			int count = used.count(i);
+			charCounts[i] -= count;
+			for (int j = 0; j < count; j++)
+				currentLetters[i].removeFirst();
+		}
+	}
+}
+
+class Candidate
+{
+	final String word;
+	final LetterCounts extra;
+	
+	// extra holds the letters that have to come from the pile
+	Candidate(String word_, LetterCounts base)
+	{
+		word = word_;
+		extra = Dictionary.letterCounts(word).minus(base);
+	}
 }
 
 class Game
@@ -466,6 +864,7 @@ class Game
 	static final int MAX_LENGTH = 15;
 	static final int MAX_FLIP_TIME = 20;
 	static final int MAX_PLAYERS = 3;
+	static final int REJECTABLE = 3; // latest steals that can still be rejected
 	
 	int numPlayers;
 	boolean started;
@@ -473,7 +872,7 @@ class Game
 	Tile[] tiles;
 	int lastFlipIndex;
 	long lastFlipTime;
-	LinkedList<Word>[] wordPiles;
+	ArrayList<Word>[] wordPiles;
 	Stack<ChangeData> lastSteals;
 	
 	String[] playerNames;
@@ -496,9 +895,9 @@ class Game
 			tiles[i] = new Tile(newTiles[i], i);
 		lastFlipIndex = -1;
 		lastFlipTime = -1;
-		wordPiles = (LinkedList<Word>[])new LinkedList[numPlayers];
+		wordPiles = (ArrayList<Word>[])new ArrayList[numPlayers];
 		for (int i = 0; i < numPlayers; i++)
-			wordPiles[i] = new LinkedList<Word>();
+			wordPiles[i] = new ArrayList<Word>();
 		lastSteals = new Stack<ChangeData>();
 			
 		this.playerNames = playerNames;
@@ -513,6 +912,29 @@ class Game
 		started = true;
 	}
 	
+	// deep copy of the game state, sharing only the immutable words and changes
+	void copyFrom(Game other)
+	{
+		numPlayers = other.numPlayers;
+		started = other.started;
+		
+		tiles = new Tile[NUM_TILES];
+		for (int i = 0; i < NUM_TILES; i++)
+			tiles[i] = other.tiles[i].copy();
+		lastFlipIndex = other.lastFlipIndex;
+		lastFlipTime = other.lastFlipTime;
+		wordPiles = (ArrayList<Word>[])new ArrayList[numPlayers];
+		for (int i = 0; i < numPlayers; i++)
+			wordPiles[i] = new ArrayList<Word>(other.wordPiles[i]);
+		lastSteals = new Stack<ChangeData>();
+		lastSteals.addAll(other.lastSteals);
+		
+		playerNames = other.playerNames.clone();
+		presentPlayers = other.presentPlayers.clone();
+		scores = other.scores.clone();
+		currentPlayer = other.currentPlayer;
+	}
+	
 	void flipTile(int index)
 	{
 		if (!started)
@@ -524,17 +946,62 @@ class Game
 		nextPlayer();
 	}
 	
-	void processChange(ChangeData data)
+	// fills in the tile moves of a steal that has not been applied yet from its
+	// word-level change: the stolen word's tiles, the tiles after it that shift
+	// up a slot, then the pile tiles in data.pileTiles
+	void buildMoves(ChangeData data)
 	{
+		int[] charWatch = new int[NUM_LETTERS];
+		int player = data.playerTaken;
+		int slot = (data.playerStolen == player ? data.stolenIndex : wordPiles[player].size());
+		
 		if (data.stolen != null)
 		{
-			wordPiles[data.playerStolen].remove(data.stolenIndex);
-			scores[data.playerStolen] -= data.stolen.length();
-		}
-		
-		if (data.playerStolen == data.playerTaken)
-			wordPiles[data.playerTaken].add(data.stolenIndex, data.taken);
-		else
+			for (int i = 0; i < data.stolen.length(); i++)
+			{
+				int tileIndex = tileAt(data.playerStolen, data.stolenIndex, i);
+				int letter = tiles[tileIndex].letter;
+				int movedIndex = data.taken.indexOf(letter + 'A', charWatch[letter]);
+				charWatch[letter] = movedIndex + 1;
+				data.tileMoves.add(new int[] {tileIndex, data.playerStolen, data.stolenIndex, i, player, slot, movedIndex});
+			}
+			
+			// shifts all tiles after one word is taken
+			if (data.playerStolen != player)
+				for (int i = data.stolenIndex + 1; i < wordPiles[data.playerStolen].size(); i++)
+					for (int j = 0; j < wordPiles[data.playerStolen].get(i).length(); j++)
+						data.tileMoves.add(new int[] {tileAt(data.playerStolen, i, j), data.playerStolen, i, j, data.playerStolen, i - 1, j});
+		}
+		
+		for (int tileIndex : data.pileTiles)
+		{
+			int letter = tiles[tileIndex].letter;
+			int movedIndex = data.taken.indexOf(letter + 'A', charWatch[letter]);
+			charWatch[letter] = movedIndex + 1;
+			data.tileMoves.add(new int[] {tileIndex, -1, 0, 0, player, slot, movedIndex});
+		}
+	}
+	
+	// the tile at letter c of word w in player p's pile
+	int tileAt(int p, int w, int c)
+	{
+		for (Tile tile : tiles)
+			if (tile.p == p && tile.w == w && tile.c == c)
+				return tile.index;
+		return -1;
+	}
+	
+	void processChange(ChangeData data)
+	{
+		if (data.stolen != null)
+		{
+			wordPiles[data.playerStolen].remove(data.stolenIndex);
+			scores[data.playerStolen] -= data.stolen.length();
+		}
+		
+		if (data.playerStolen == data.playerTaken)
+			wordPiles[data.playerTaken].add(data.stolenIndex, data.taken);
+		else
 			wordPiles[data.playerTaken].add(data.taken);
 		currentPlayer = data.playerTaken;
 		scores[data.playerTaken] += data.taken.length();
@@ -551,6 +1018,103 @@ class Game
 			undo(lastSteals.pop());
 	}
 	
+	// the whole table, for a client that reconnects too late to replay what it missed
+	void writeSnapshot(Frame frame)
+	{
+		frame.writeVarint(numPlayers);
+		for (String s : playerNames)
+			frame.writeText(s);
+		
+		int[] letters = new int[NUM_TILES];
+		for (int i = 0; i < NUM_TILES; i++)
+			letters[i] = tiles[i].letter;
+		frame.writeLetters(letters);
+		for (Tile tile : tiles)
+		{
+			frame.writeSigned(tile.p).writeVarint(tile.w);
+			if (!tile.inPile())
+				frame.writeVarint(tile.c);
+		}
+		
+		for (ArrayList<Word> pile : wordPiles)
+		{
+			frame.writeVarint(pile.size());
+			for (Word word : pile)
+				frame.writeWord(word.word);
+		}
+		
+		frame.writeVarint(currentPlayer).writeSigned(lastFlipIndex);
+		frame.writeSigned(lastFlipTime < 0 ? -1 : (int)(System.currentTimeMillis() - lastFlipTime));
+		
+		// older steals can no longer be rejected, so only their number is needed
+		int numSent = Math.min(REJECTABLE, lastSteals.size());
+		frame.writeVarint(lastSteals.size()).writeVarint(numSent);
+		for (int i = lastSteals.size() - numSent; i < lastSteals.size(); i++)
+			lastSteals.get(i).write(frame);
+	}
+	
+	void readSnapshot(Frame frame) throws IOException
+	{
+		int numPlayers = frame.readVarint();
+		if (numPlayers <= 0 || numPlayers > MAX_PLAYERS)
+			throw new IOException("bad snapshot");
+		String[] playerNames = new String[numPlayers];
+		for (int i = 0; i < numPlayers; i++)
+			playerNames[i] = frame.readText();
+		newGame(numPlayers, playerNames, frame.readLetters(NUM_TILES));
+		
+		for (Tile tile : tiles)
+		{
+			int p = frame.readSigned(), w = frame.readVarint();
+			if (p == -1)
+				tile.toPile(w == 1);
+			else
+				tile.move(p, w, frame.readVarint());
+		}
+		
+		for (int i = 0; i < numPlayers; i++)
+		{
+			int n = frame.readVarint();
+			for (int j = 0; j < n; j++)
+			{
+				Word word = new Word(frame.readWord(), i);
+				wordPiles[i].add(word);
+				scores[i] += word.length();
+			}
+		}
+		
+		currentPlayer = frame.readVarint();
+		lastFlipIndex = frame.readSigned();
+		int elapsed = frame.readSigned();
+		lastFlipTime = (elapsed < 0 ? -1 : System.currentTimeMillis() - elapsed);
+		
+		int numSteals = frame.readVarint(), numSent = frame.readVarint();
+		ChangeData[] sent = new ChangeData[numSent];
+		for (int i = 0; i < numSent; i++)
+			sent[i] = ChangeData.read(frame);
+		
+		// undoing the sent steals on a copy of the piles finds the word objects
+		// they took, so that a later undo removes the word actually on the table
+		ArrayList<Word>[] piles = (ArrayList<Word>[])new ArrayList[numPlayers];
+		for (int i = 0; i < numPlayers; i++)
+			piles[i] = new ArrayList<Word>(wordPiles[i]);
+		for (int i = numSent - 1; i >= 0; i--)
+		{
+			ChangeData data = sent[i];
+			if (data.playerStolen == data.playerTaken)
+				data.taken = piles[data.playerTaken].remove(data.stolenIndex);
+			else
+				data.taken = piles[data.playerTaken].remove(piles[data.playerTaken].size() - 1);
+			if (data.stolen != null)
+				piles[data.playerStolen].add(data.stolenIndex, data.stolen);
+		}
+		
+		for (int i = numSent; i < numSteals; i++)
+			lastSteals.push(NO_WORD);
+		for (ChangeData data : sent)
+			lastSteals.push(data);
+	}
+	
 	void undo(ChangeData lastSteal)
 	{
 		if (lastSteal.stolen != null)
@@ -559,7 +1123,11 @@ class Game
 			scores[lastSteal.playerStolen] += lastSteal.stolen.length();
 		}
 		
-		wordPiles[lastSteal.playerTaken].removeLast();
+		// a word stolen from its own owner was put back in the same slot
+		if (lastSteal.playerStolen == lastSteal.playerTaken)
+			wordPiles[lastSteal.playerTaken].remove(lastSteal.stolenIndex + 1);
+		else
+			wordPiles[lastSteal.playerTaken].remove(wordPiles[lastSteal.playerTaken].size() - 1);
 		if (lastSteal.playerStolen != -1)
 			currentPlayer = lastSteal.playerStolen;
 		scores[lastSteal.playerTaken] -= lastSteal.taken.length();
@@ -568,6 +1136,14 @@ class Game
 			tiles[move[0]].move(move[1], move[2], move[3]);
 	}
 	
+	static int[] letterCounts(String word)
+	{
+		int[] table = new int[NUM_LETTERS];
+		for (char c : word.toCharArray())
+			table[c - 'A']++;
+		return table;
+	}
+	
 	long remainingTime()
 	{
 		return Math.max(0, MAX_FLIP_TIME - (System.currentTimeMillis() - lastFlipTime) / 1000);
@@ -1165,7 +1741,7 @@ class WordPanel
 		return cumLen * tileSize + HORIZ_BUFFER * (cumWidths.size() - 1) + 2 * MARGIN < WIDTH;
 	}
 	
-	private LinkedList<Word> wordPile()
+	private ArrayList<Word> wordPile()
 	{
 		return game.wordPiles[player];
 	}
@@ -1576,6 +2152,7 @@ class ChangeData
 	int playerTaken;
 	Word stolen, taken;
 	ArrayList<int[]> tileMoves;
+	int[] pileTiles;
 	
 	ChangeData()
 	{
@@ -1617,6 +2194,98 @@ class ChangeData
 		
 		return data;
 	}
+	
+	// the word-level change only; Game.buildMoves recovers the tile moves from it
+	String toDeltaString()
+	{
+		StringBuilder output = new StringBuilder();
+		output.append(" " + playerStolen + " " + stolenIndex);
+		output.append(" " + playerTaken);
+		output.append(" " + (stolen == null ? "$" : stolen.word) + " " + taken.word);
+		output.append(" " + pileTiles.length);
+		for (int tileIndex : pileTiles)
+			output.append(" " + tileIndex);
+		return output + "";
+	}
+	
+	static ChangeData parseDelta(String s)
+	{
+		ChangeData data = new ChangeData();
+		StringTokenizer t = new StringTokenizer(s);
+		
+		data.playerStolen = Integer.parseInt(t.nextToken());
+		data.stolenIndex = Integer.parseInt(t.nextToken());
+		data.playerTaken = Integer.parseInt(t.nextToken());
+		String stolen = t.nextToken();
+		data.stolen = stolen.equals("$") ? null : new Word(stolen, data.playerStolen);
+		data.taken = new Word(t.nextToken(), data.playerTaken);
+		data.pileTiles = new int[Integer.parseInt(t.nextToken())];
+		for (int i = 0; i < data.pileTiles.length; i++)
+			data.pileTiles[i] = Integer.parseInt(t.nextToken());
+		
+		return data;
+	}
+	
+	void write(Frame frame)
+	{
+		frame.writeSigned(playerStolen).writeSigned(stolenIndex).writeSigned(playerTaken);
+		frame.writeWord(stolen == null ? "" : stolen.word).writeWord(taken.word);
+		frame.writeVarint(tileMoves.size());
+		for (int[] move : tileMoves)
+			for (int i : move)
+				frame.writeSigned(i);
+	}
+	
+	static ChangeData read(Frame frame) throws IOException
+	{
+		ChangeData data = new ChangeData();
+		
+		data.playerStolen = frame.readSigned();
+		data.stolenIndex = frame.readSigned();
+		data.playerTaken = frame.readSigned();
+		String stolen = frame.readWord();
+		data.stolen = stolen.isEmpty() ? null : new Word(stolen, data.playerStolen);
+		data.taken = new Word(frame.readWord(), data.playerTaken);
+		int m = frame.readVarint();
+		for (int i = 0; i < m; i++)
+		{
+			int[] move = new int[7];
+			for (int j = 0; j < 7; j++)
+				move[j] = frame.readSigned();
+			data.tileMoves.add(move);
+		}
+		
+		return data;
+	}
+	
+	void writeDelta(Frame frame)
+	{
+		frame.writeSigned(playerStolen).writeSigned(stolenIndex).writeSigned(playerTaken);
+		frame.writeWord(stolen == null ? "" : stolen.word).writeWord(taken.word);
+		frame.writeVarint(pileTiles.length);
+		for (int tileIndex : pileTiles)
+			frame.writeVarint(tileIndex);
+	}
+	
+	static ChangeData readDelta(Frame frame) throws IOException
+	{
+		ChangeData data = new ChangeData();
+		
+		data.playerStolen = frame.readSigned();
+		data.stolenIndex = frame.readSigned();
+		data.playerTaken = frame.readSigned();
+		String stolen = frame.readWord();
+		data.stolen = stolen.isEmpty() ? null : new Word(stolen, data.playerStolen);
+		data.taken = new Word(frame.readWord(), data.playerTaken);
+		int m = frame.readVarint();
+		if (m > Game.MAX_LENGTH)
+			throw new IOException("bad change");
+		data.pileTiles = new int[m];
+		for (int i = 0; i < m; i++)
+			data.pileTiles[i] = frame.readVarint();
+		
+		return data;
+	}
 }
 
 class TileSpot
@@ -1676,17 +2345,29 @@ class Tile
 	{
 		return w == 1;
 	}
+	
+	Tile copy()
+	{
+		Tile tile = new Tile(letter, index);
+		tile.move(p, w, c);
+		tile.currentX = currentX;
+		tile.currentY = currentY;
+		tile.onTheMove = onTheMove;
+		return tile;
+	}
 }
 
 class Word
 {
 	String word;
 	int player;
+	final LetterCounts counts;
 	
 	Word(String word_, int player_)
 	{
 		word = word_;
 		player = player_;
+		counts = Dictionary.letterCounts(word);
 	}
 	
 	int length()
@@ -1710,691 +2391,5493 @@ class Word
 	}
 }
 
-class Server
+// How many of each letter a word or the pile has, four bits a letter: A to M
+// in low and N to Z in high. No count goes past 15 (the most of one letter in
+// the game is 12), so the subset test below needs no spare bits between the
+// counts: subtracting field by field, a count that goes negative borrows out
+// of its top bit, and only those top bits are looked at.
+class LetterCounts
 {
-	static int TIE_BUFFER = 200; // in milliseconds
-	static boolean COUNT_TIES = false;
+	static final int BITS = 4;
+	static final int PER_LONG = 13;
+	static final long MASK = 0xF;
+	static final long TOPS = 0x8888888888888L; // top bit of each count
+	static final LetterCounts NONE = new LetterCounts(0, 0);
 	
-	boolean open;
-	final ServerSocket s;
-	ArrayList<PrintWriter> writers;
-	ArrayList<BufferedReader> readers;
-	int numClients;
-	
-	ActiveGame game;
-	boolean[] rejectionRequested;
-	
-	ArrayList<Take> takeQueue;
-	ArrayList<String>[] formerTakes;
-	boolean[] ableToTake;
+	final long low, high;
 	
-	Timer flipper, queueListener;
-	
-	Server(int port) throws IOException
+	LetterCounts(long low, long high)
 	{
-		open = true;
-		s = new ServerSocket(port);
-		writers = new ArrayList<PrintWriter>();
-		readers = new ArrayList<BufferedReader>();
-		numClients = 0;
-		
-		game = new ActiveGame();
-		rejectionRequested = new boolean[Game.NUM_TILES];
+		this.low = low;
+		this.high = high;
 	}
 	
-	void initiate(int numPlayers) throws IOException
+	static LetterCounts of(String word)
 	{
-		String[] playerNames = new String[numPlayers];
-		
-		while (numClients < numPlayers)
+		long low = 0, high = 0;
+		for (int i = 0; i < word.length(); i++)
 		{
-			String name = receive();
-			
-			if (name != null)
-				playerNames[numClients - 1] = name;
+			int letter = word.charAt(i) - 'A';
+			if (letter < 0 || letter >= Game.NUM_LETTERS)
+				throw new IllegalArgumentException(word);
+			if (letter < PER_LONG)
+				low += 1L << (BITS * letter);
+			else
+				high += 1L << (BITS * (letter - PER_LONG));
 		}
-			
-		newGame(numPlayers, playerNames);
-		startListeners();
-		startAutoFlipper();
-		startQueueListener();
+		return new LetterCounts(low, high);
 	}
 	
-	String receive() throws IOException
+	static LetterCounts of(int[] counts)
 	{
-		Socket incoming = s.accept();
-		
-		PrintWriter writer = new PrintWriter(incoming.getOutputStream(), true);
-		BufferedReader reader = new BufferedReader(new InputStreamReader(incoming.getInputStream()));
-		writers.add(writer);
-		readers.add(reader);
-		
-		writer.println("WELCOME " + numClients);
-		
-		String[] codes = getCodes(numClients);
-		// NEW_CLIENT [name]
-		if (!codes[0].equals("NEW_CLIENT"))
-		{
-			incoming.close();
-			return null;
-		}
-		numClients++;
-		return codes[1].replace('\0', ' ');
+		long low = 0, high = 0;
+		for (int i = 0; i < PER_LONG; i++)
+			low |= (long)counts[i] << (BITS * i);
+		for (int i = PER_LONG; i < Game.NUM_LETTERS; i++)
+			high |= (long)counts[i] << (BITS * (i - PER_LONG));
+		return new LetterCounts(low, high);
 	}
 	
-	void close() throws IOException
+	int count(int letter)
 	{
-		if (flipper != null)
-			flipper.stop();
-		if (queueListener != null)
-			queueListener.stop();
-		
-		for (PrintWriter writer : writers)
-			writer.close();
-		for (BufferedReader reader : readers)
-			reader.close();
-			
-		open = false;
-		s.close();
+		if (letter < PER_LONG)
+			return (int)(low >>> (BITS * letter) & MASK);
+		return (int)(high >>> (BITS * (letter - PER_LONG)) & MASK);
 	}
 	
-	boolean isOpen()
+	int[] toArray()
 	{
-		return open;
+		int[] counts = new int[Game.NUM_LETTERS];
+		for (int i = 0; i < Game.NUM_LETTERS; i++)
+			counts[i] = count(i);
+		return counts;
 	}
 	
-	private void newGame(int numPlayers, String[] playerNames)
+	LetterCounts plus(int letter)
 	{
-		int[] letters = game.newGame(numPlayers, playerNames);
-		for (int i = 0; i < rejectionRequested.length; i++)
-			rejectionRequested[i] = false;
-		
-		takeQueue = new ArrayList<Take>();
-		formerTakes = (ArrayList<String>[])new ArrayList[game.numPlayers];
-		for (int i = 0; i < game.numPlayers; i++)
-			formerTakes[i] = new ArrayList<String>();
-		ableToTake = new boolean[game.numPlayers];
-		
-		StringBuilder output = new StringBuilder();
-		output.append("NEW " + game.numPlayers);
-		for (String s : game.playerNames)
-			output.append(" " + s.replace(' ', '\0'));
-		for (int i : letters)
-			output.append(" " + i);
-		announce(output.toString());
+		if (letter < PER_LONG)
+			return new LetterCounts(low + (1L << (BITS * letter)), high);
+		return new LetterCounts(low, high + (1L << (BITS * (letter - PER_LONG))));
 	}
 	
-	private void startListeners()
+	LetterCounts plus(LetterCounts other)
 	{
-		for (int i = 0; i < numClients; i++)
-			new Listener(i).start();
+		return new LetterCounts(low + other.low, high + other.high);
 	}
 	
-	private void startAutoFlipper()
+	// only for other contained in this
+	LetterCounts minus(LetterCounts other)
 	{
-		flipper = new Timer(1000, new ActionListener()
-		{
-			public void actionPerformed(ActionEvent e)
-			{
-				if (game.lastFlipTime > 0 && game.remainingTime() <= 0 && !game.randomIndeces.isEmpty())
-					flipTile();
-			}
-		});
-		
-		flipper.start();
+		return new LetterCounts(low - other.low, high - other.high);
 	}
 	
-	private void startQueueListener()
+	// whether this has at least as many of every letter as other
+	boolean contains(LetterCounts other)
 	{
-		queueListener = new Timer(50, new ActionListener()
-		{
-			public void actionPerformed(ActionEvent e)
-			{
-				if (COUNT_TIES)
-				{
-					long time = System.currentTimeMillis();
-					if (!takeQueue.isEmpty() && time >= takeQueue.get(0).time + TIE_BUFFER)
-					{
-						long endTime = takeQueue.get(0).time + TIE_BUFFER;
-						
-						ArrayList<Take> currentTakes = new ArrayList<Take>();
-						boolean[] takingPlayers = new boolean[game.numPlayers];
-						int i = 0;
-						while (i < takeQueue.size() && takeQueue.get(i).time <= endTime)
-						{
-							Take take = takeQueue.get(i);
-							
-							if (takingPlayers[take.player])
-								i++;
-							else
-							{
-								if (!ableToTake[take.player])
-									sendMessage("You are temporarily not allowed to steal.", take.player);
-								else if (game.canTake(takeQueue.get(i).word))
-								{
-									if (formerTakes[take.player].contains(take.word))
-										sendMessage("You already entered this word!", take.player);
-									else
-									{
-										int j = 0;
-										boolean considering = true;
-										while (j < currentTakes.size() && considering)
-										{
-											if (currentTakes.get(j).length() < take.length() && ActiveGame.overtakes(currentTakes.get(j).word, take.word))								
-												currentTakes.remove(j);
-											else if (currentTakes.get(j).length() > take.length() && ActiveGame.overtakes(take.word, currentTakes.get(j).word))								
-												considering = false;
-											else
-												j++;
-										}
-										
-										if (considering)
-										{
-											formerTakes[take.player].add(take.word);
-											currentTakes.add(take);
-										}
-									}
-								}
-								
-								takeQueue.remove(i);
-								takingPlayers[take.player] = true;
-							}
-						}
-						
-						if (currentTakes.size() == 1)
-						{
-							ChangeData data = game.steal(currentTakes.get(0).word, currentTakes.get(0).player);
-							if (data != Game.NO_WORD)
-								announce("TAKE " + data.toString().replace(' ', '\0'));
-							resetTakers();
-						}
-						else if (currentTakes.size() > 1)
-						{
-							for (int j = 0; j < game.numPlayers; j++)
-								ableToTake[j] = false;
-							for (Take take : currentTakes)
-								ableToTake[take.player] = true;
-								
-							for (Take take : currentTakes)
-								sendMessage("TIE! (" + take.word + ")", take.player);
-						}
-					}
-				}
-				else
-				{
-					if (!takeQueue.isEmpty())
-					{
-						Take take = takeQueue.remove(0);
-						
-						ChangeData data = game.steal(take.word, take.player);
-						if (data != Game.NO_WORD)
-							announce("TAKE " + data.toString().replace(' ', '\0'));
-						resetTakers();
-					}
-				}
-			}
-		});
-		
-		queueListener.start();
+		return !borrows(low, other.low) && !borrows(high, other.high);
 	}
 	
-	private void announce(String message)
+	// whether this contains a - b, for b contained in a
+	boolean containsDifference(LetterCounts a, LetterCounts b)
 	{
-		for (int i = 0; i < numClients; i++)
-			writers.get(i).println(message);
+		return !borrows(low, a.low - b.low) && !borrows(high, a.high - b.high);
 	}
 	
-	private void sendMessage(String message, int player)
+	// whether some count of y is more than the same count of x; the borrow out
+	// of each bit of x - y is (~x & y) | (~(x ^ y) & (x - y))
+	static boolean borrows(long x, long y)
 	{
-		writers.get(player).println("SHOW " + message.replace(' ', '\0'));
+		return (((~x & y) | (~(x ^ y) & (x - y))) & TOPS) != 0;
 	}
 	
-	private void flipTile()
+	public boolean equals(Object o)
 	{
-		int tileIndex = game.flipTile();
-		announce("FLIP " + tileIndex);
-		
-		resetTakers();
-		
-		for (int i = 0; i < game.numPlayers; i++)
-		{
-			int j = 0;
-			while (j < formerTakes[i].size())
-			{
-				if (formerTakes[i].get(j).indexOf(game.tiles[tileIndex].letter + 'A') == -1)
-					j++;
-				else
-					formerTakes[i].remove(j);
-			}
-		}
+		if (!(o instanceof LetterCounts))
+			return false;
+		LetterCounts other = (LetterCounts)o;
+		return low == other.low && high == other.high;
 	}
 	
-	private void resetTakers()
+	public int hashCode()
 	{
-		for (int i = 0; i < game.numPlayers; i++)
-			ableToTake[i] = true;
+		long hash = low * 31 + high;
+		return (int)(hash ^ (hash >>> 32));
 	}
 	
-	private String[] getCodes(int index) throws IOException
+	public String toString()
 	{
-		String line = readers.get(index).readLine();
-		return (line == null ? null : line.split(" "));
+		return Arrays.toString(toArray());
 	}
+}
+
+// The words on the table, EMPTY included, in the order they were put there.
+// Each gets an id; removing one leaves a hole that iteration skips, so the
+// order of the rest and their ids stay put until the table fills up and the
+// holes are squeezed out (see add). Words are shared between copies of a
+// game, so the ids and pile positions are kept here rather than on the words.
+// Once the table is big enough, the words are also indexed by their letters,
+// so that the ones a new word could steal can be looked up instead of tried
+// one by one.
+class WordTable implements Iterable<Word>
+{
+	static final int MIN_INDEXED = 48; // below this, trying every word is faster than the lookups
 	
-	class Listener extends Thread
+	Word[] entries;
+	int[] positions; // in the owner's pile, by id
+	int end, size;
+	final IdentityHashMap<Word, Integer> ids;
+	HashMap<LetterCounts, ArrayList<Word>> anagrams; // null until the table first reaches MIN_INDEXED
+	
+	WordTable()
 	{
-		final int player;
-		
-		Listener(int player)
-		{
-			this.player = player;
-		}
-		
-		public void run()
-		{
-			String[] codes;
+		entries = new Word[64];
+		positions = new int[64];
+		ids = new IdentityHashMap<Word, Integer>();
+	}
+	
+	void clear()
+	{
+		Arrays.fill(entries, 0, end, null);
+		end = 0;
+		size = 0;
+		ids.clear();
+		anagrams = null;
+	}
+	
+	void copyFrom(WordTable other)
+	{
+		entries = other.entries.clone();
+		positions = other.positions.clone();
+		end = other.end;
+		size = other.size;
+		ids.clear();
+		ids.putAll(other.ids);
+		anagrams = null;
+		if (other.anagrams != null)
+		{
+			anagrams = new HashMap<LetterCounts, ArrayList<Word>>();
+			for (Map.Entry<LetterCounts, ArrayList<Word>> entry : other.anagrams.entrySet())
+				anagrams.put(entry.getKey(), new ArrayList<Word>(entry.getValue()));
+		}
+	}
+	
+	int add(Word word)
+	{
+		// holes are only squeezed out when the ids are about to run out of room
+		if (end == entries.length)
+		{
+			if (size <= end / 2)
+				compact();
+			else
+			{
+				entries = Arrays.copyOf(entries, 2 * end);
+				positions = Arrays.copyOf(positions, 2 * end);
+			}
+		}
+		
+		int id = end++;
+		entries[id] = word;
+		positions[id] = -1;
+		ids.put(word, id);
+		size++;
+		
+		if (anagrams != null)
+			index(word);
+		else if (size == MIN_INDEXED)
+		{
+			anagrams = new HashMap<LetterCounts, ArrayList<Word>>();
+			for (Word other : this)
+				index(other);
+		}
+		return id;
+	}
+	
+	private void index(Word word)
+	{
+		ArrayList<Word> list = anagrams.get(word.counts);
+		if (list == null)
+		{
+			list = new ArrayList<Word>(1);
+			anagrams.put(word.counts, list);
+		}
+		list.add(word);
+	}
+	
+	boolean remove(Word word)
+	{
+		Integer id = ids.remove(word);
+		if (id == null)
+			return false;
+		
+		entries[id] = null;
+		size--;
+		
+		if (anagrams != null)
+		{
+			ArrayList<Word> list = anagrams.get(word.counts);
+			list.remove(word);
+			if (list.isEmpty())
+				anagrams.remove(word.counts);
+		}
+		return true;
+	}
+	
+	// a superset of the words that a word with these letters can be made from
+	// along with the pile, in table order; the letters of each are between
+	// what the pile cannot supply and all of counts, so those are looked up,
+	// unless there are more of them than words on the table
+	Iterable<Word> candidates(LetterCounts counts, LetterCounts pile)
+	{
+		if (anagrams == null || size < MIN_INDEXED)
+			return this;
+		
+		int numLetters = 0;
+		int[] letters = new int[Game.NUM_LETTERS];
+		int[] least = new int[Game.NUM_LETTERS];
+		long numLookups = 1;
+		for (int i = 0; i < Game.NUM_LETTERS; i++)
+		{
+			int count = counts.count(i);
+			if (count == 0)
+				continue;
+			letters[numLetters++] = i;
+			least[i] = Math.max(0, count - pile.count(i));
+			numLookups *= count - least[i] + 1;
+		}
+		if (numLookups > size)
+			return this;
+		
+		// counts over every combination, the first letter the fastest
+		ArrayList<Word> output = new ArrayList<Word>();
+		int[] current = least.clone();
+		while (true)
+		{
+			ArrayList<Word> list = anagrams.get(LetterCounts.of(current));
+			if (list != null)
+				output.addAll(list);
+			
+			int n = 0;
+			while (n < numLetters && current[letters[n]] == counts.count(letters[n]))
+			{
+				current[letters[n]] = least[letters[n]];
+				n++;
+			}
+			if (n == numLetters)
+				break;
+			current[letters[n]]++;
+		}
+		
+		if (output.size() > 1)
+			Collections.sort(output, new Comparator<Word>()
+			{
+				public int compare(Word a, Word b)
+				{
+					return ids.get(a) - ids.get(b);
+				}
+			});
+		return output;
+	}
+	
+	// -1 if the word is not on the table
+	int id(Word word)
+	{
+		Integer id = ids.get(word);
+		return (id == null ? -1 : id);
+	}
+	
+	Word get(int id)
+	{
+		return entries[id];
+	}
+	
+	// the word's index in its owner's pile, as of the last renumber
+	int position(Word word)
+	{
+		return positions[ids.get(word)];
+	}
+	
+	// records the pile indeces of a pile that has changed
+	void renumber(java.util.List<Word> pile)
+	{
+		for (int i = 0; i < pile.size(); i++)
+		{
+			Integer id = ids.get(pile.get(i));
+			if (id != null)
+				positions[id] = i;
+		}
+	}
+	
+	int size()
+	{
+		return size;
+	}
+	
+	Word[] toArray()
+	{
+		Word[] output = new Word[size];
+		int n = 0;
+		for (Word word : this)
+			output[n++] = word;
+		return output;
+	}
+	
+	private void compact()
+	{
+		int n = 0;
+		for (int i = 0; i < end; i++)
+			if (entries[i] != null)
+			{
+				entries[n] = entries[i];
+				positions[n] = positions[i];
+				ids.put(entries[n], n);
+				n++;
+			}
+		Arrays.fill(entries, n, end, null);
+		end = n;
+	}
+	
+	public Iterator<Word> iterator()
+	{
+		return new Iterator<Word>()
+		{
+			int next = skip(0);
+			
+			public boolean hasNext()
+			{
+				return next < end;
+			}
+			
+			public Word next()
+			{
+				if (next >= end)
+					throw new NoSuchElementException();
+				Word word = entries[next];
+				next = skip(next + 1);
+				return word;
+			}
+			
+			public void remove()
+			{
+				throw new UnsupportedOperationException();
+			}
+		};
+	}
+	
+	private int skip(int id)
+	{
+		while (id < end && entries[id] == null)
+			id++;
+		return id;
+	}
+}
+
+// Hosts any number of rooms on one port. Clients pick their room in the
+// NEW_CLIENT handshake; all rooms share the static dictionary and steal graph.
+class Server implements ConnectionHandler
+{
+	static int TIE_BUFFER = 200; // in milliseconds
+	static boolean COUNT_TIES = false;
+	static final String DEFAULT_ROOM = "main";
+	static final int MAX_ROOMS = 1024;
+	
+	boolean open;
+	final EventLoop loop;
+	final ScheduledExecutorService scheduler;
+	final HashMap<String, Room> rooms;
+	Room defaultRoom;
+	final ServerMetrics metrics;
+	
+	Server(int port) throws IOException
+	{
+		open = true;
+		loop = new EventLoop(port, this);
+		scheduler = Executors.newScheduledThreadPool(Runtime.getRuntime().availableProcessors());
+		rooms = new HashMap<String, Room>();
+		metrics = new ServerMetrics(this);
+	}
+	
+	// accepts clients into any room they ask for
+	void start()
+	{
+		loop.start();
+	}
+	
+	// opens the default room, waits for numPlayers clients to join it and
+	// starts its game; the server closes when that game is over
+	void initiate(int numPlayers) throws IOException
+	{
+		synchronized (this)
+		{
+			defaultRoom = new Room(this, DEFAULT_ROOM, numPlayers);
+			rooms.put(DEFAULT_ROOM, defaultRoom);
+			loop.start();
+			
+			while (defaultRoom.numClients < numPlayers && open)
+				try { wait(); } catch (InterruptedException e) { throw new InterruptedIOException(); }
+			
+			if (!open)
+				throw new IOException("server closed");
+		}
+	}
+	
+	void close() throws IOException
+	{
+		synchronized (this)
+		{
+			open = false;
+			notifyAll();
+			rooms.clear();
+		}
+		
+		scheduler.shutdownNow();
+		loop.shutdown();
+	}
+	
+	boolean isOpen()
+	{
+		return open;
+	}
+	
+	// runs task on a scheduler thread after delay milliseconds; null once the server has closed
+	ScheduledFuture<?> schedule(Runnable task, long delay)
+	{
+		try
+		{
+			return scheduler.schedule(task, Math.max(0, delay), TimeUnit.MILLISECONDS);
+		}
+		catch (RejectedExecutionException e)
+		{
+			return null;
+		}
+	}
+	
+	int numClients()
+	{
+		return (defaultRoom == null ? 0 : defaultRoom.numClients);
+	}
+	
+	// reopens the rooms whose games were still going when the server last stopped;
+	// their players can then resume their seats
+	synchronized void recover() throws IOException
+	{
+		File[] files = GameLog.DIRECTORY.listFiles();
+		if (files == null)
+			return;
+		
+		for (File file : files)
+		{
+			if (!file.getName().endsWith(GameLog.SUFFIX))
+				continue;
+			
+			try
+			{
+				Room room = Room.recover(this, file);
+				if (room != null)
+					rooms.put(room.name, room);
+			}
+			catch (IOException e)
+			{
+				System.err.println("Could not recover " + file + ": " + e.getMessage());
+			}
+			catch (RuntimeException e)
+			{
+				System.err.println("Could not recover " + file + ": " + e);
+			}
+		}
+	}
+	
+	void remove(Room room)
+	{
+		synchronized (this)
+		{
+			if (rooms.get(room.name) == room)
+				rooms.remove(room.name);
+		}
+		
+		if (room == defaultRoom && open)
+		{
+			try
+			{
+				close();
+			}
+			catch (IOException e_)
+			{
+				JOptionPane.showMessageDialog(null, "Error.");
+			}
+		}
+	}
+	
+	public void connected(Connection connection) {}
+	
+	public void received(Connection connection, String line)
+	{
+		String[] codes = line.split(" ");
+		
+		if (connection.room == null)
+		{
+			// NEW_CLIENT [name] [room] [number of players] [capability] ...
+			// RECONNECT [room] [player index] [token] [last seq] [capability] ...
+			// HEALTH
+			if (codes[0].equals("HEALTH"))
+			{
+				connection.send(health());
+				connection.close();
+			}
+			else if (codes[0].equals("RECONNECT") && codes.length >= 5)
+				resume(connection, codes);
+			else if (!codes[0].equals("NEW_CLIENT") || codes.length < 2 || !join(connection, codes))
+				refuse(connection);
+			return;
+		}
+		
+		connection.room.receive(connection, codes);
+	}
+	
+	public void received(Connection connection, Frame frame) throws IOException
+	{
+		connection.room.receive(connection, frame);
+	}
+	
+	// sends the connection to the room it asked for, creating the room if
+	// it does not exist and a number of players was given; capabilities the
+	// client lists after the number of players are granted in its WELCOME
+	private synchronized boolean join(Connection connection, String[] codes)
+	{
+		String name = (codes.length > 2 ? codes[2] : DEFAULT_ROOM);
+		Room room = rooms.get(name);
+		if (room == null)
+		{
+			if (codes.length < 4 || rooms.size() >= MAX_ROOMS)
+				return false;
+			
+			int numPlayers = Integer.parseInt(codes[3]);
+			if (numPlayers <= 0 || numPlayers > Game.MAX_PLAYERS)
+				return false;
+			
+			room = new Room(this, name, numPlayers);
+			rooms.put(name, room);
+		}
+		
+		grant(connection, codes, 4);
+		room.join(connection, codes[1].replace('\0', ' '));
+		return true;
+	}
+	
+	// hands a dropped player's seat to a new connection; only binary clients can
+	// resume, since snapshots only exist as frames
+	private synchronized void resume(Connection connection, String[] codes)
+	{
+		Room room = rooms.get(codes[1]);
+		grant(connection, codes, 5);
+		if (room == null || !connection.binary)
+			refuse(connection);
+		else
+			room.resume(connection, Integer.parseInt(codes[2]), Long.parseLong(codes[3]), Integer.parseInt(codes[4]));
+	}
+	
+	private void grant(Connection connection, String[] codes, int start)
+	{
+		for (int i = start; i < codes.length; i++)
+		{
+			if (codes[i].equals(Frame.BINARY))
+				connection.binary = true;
+			else if (codes[i].equals(Frame.DELTA))
+				connection.delta = true;
+		}
+	}
+	
+	// HEALTHY [number of rooms] [room] ...
+	private synchronized String health()
+	{
+		StringBuilder output = new StringBuilder("HEALTHY " + rooms.size());
+		for (String name : rooms.keySet())
+			output.append(" " + name);
+		return output.toString();
+	}
+	
+	static void refuse(Connection connection)
+	{
+		connection.send("REFUSED");
+		connection.close();
+	}
+	
+	public void disconnected(Connection connection)
+	{
+		if (connection.room != null)
+			connection.room.disconnected(connection);
+	}
+}
+
+// One game on a Server: its players, take queue, autoflipper and rejection state.
+// Everything that touches the game runs as a command from the room's inbox, one
+// at a time, so the game has a single writer without any locking.
+class Room
+{
+	final Server server;
+	final String name;
+	final ConcurrentLinkedQueue<Runnable> inbox;
+	final AtomicBoolean draining;
+	ArrayList<Connection> connections;
+	int numClients, numPlayers;
+	String[] playerNames;
+	
+	ActiveGame game;
+	boolean[] rejectionRequested;
+	
+	ArrayList<Take> takeQueue;
+	HashSet<String>[] queuedWords; // by player, so a word queued twice is only checked once
+	ArrayList<String>[] formerTakes;
+	boolean[] ableToTake;
+	
+	ScheduledFuture<?> flipper, takeResolver;
+	
+	// every state change is numbered, and the latest are kept for clients that reconnect
+	static final int HISTORY = 256;
+	static final int RECONNECT_TIME = (Client.RECONNECT_ATTEMPTS + 1) * Client.RECONNECT_WAIT; // in milliseconds, a little longer than clients keep trying
+	static final Random TOKENS = new java.security.SecureRandom();
+	int seq;
+	ServerMessage[] history;
+	long[] tokens;
+	
+	GameLog log; // null unless games are logged
+	boolean closed;
+	
+	Room(Server server, String name, int numPlayers)
+	{
+		this.server = server;
+		this.name = name;
+		this.numPlayers = numPlayers;
+		inbox = new ConcurrentLinkedQueue<Runnable>();
+		draining = new AtomicBoolean();
+		connections = new ArrayList<Connection>();
+		numClients = 0;
+		playerNames = new String[numPlayers];
+		tokens = new long[numPlayers];
+		
+		game = new ActiveGame();
+		rejectionRequested = new boolean[Game.NUM_TILES];
+		history = new ServerMessage[HISTORY];
+	}
+	
+	// called on the event loop; seats the connection, or refuses it if the
+	// room is full, and starts the game once every seat is taken
+	void join(final Connection connection, final String playerName)
+	{
+		// frames sent before the seat is given wait in the inbox behind it
+		connection.room = this;
+		submit(new Runnable()
+		{
+			public void run()
+			{
+				if (closed || numClients >= numPlayers || game.started)
+				{
+					Server.refuse(connection);
+					return;
+				}
+				
+				connection.player = numClients;
+				connections.add(connection);
+				playerNames[numClients] = playerName;
+				tokens[numClients] = TOKENS.nextLong() & Long.MAX_VALUE;
+				connection.send(welcome(connection));
+				
+				// Server.initiate waits for the seats to fill
+				synchronized (server)
+				{
+					numClients++;
+					server.notifyAll();
+				}
+				
+				if (numClients == numPlayers)
+					newGame(numPlayers, playerNames);
+			}
+		});
+	}
+	
+	private String welcome(Connection connection)
+	{
+		return "WELCOME " + connection.player + " " + tokens[connection.player]
+			+ (connection.binary ? " " + Frame.BINARY : "") + (connection.delta ? " " + Frame.DELTA : "");
+	}
+	
+	// called on the event loop; gives the seat to the connection if the token
+	// matches, then catches it up from lastSeq
+	void resume(final Connection connection, final int player, final long token, final int lastSeq)
+	{
+		// frames sent before the seat is given wait in the inbox behind it
+		connection.room = this;
+		submit(new Runnable()
+		{
+			public void run()
+			{
+				if (closed || !game.started || player < 0 || player >= numPlayers || tokens[player] != token)
+				{
+					Server.refuse(connection);
+					return;
+				}
+				
+				connection.player = player;
+				connections.set(player, connection).close();
+				game.presentPlayers[player] = true;
+				connection.send(welcome(connection));
+				
+				if (inHistory(lastSeq))
+					for (int i = lastSeq + 1; i <= seq; i++)
+						connection.send(history[i % HISTORY]);
+				else
+					connection.send(ServerMessage.snapshot(game, seq));
+			}
+		});
+	}
+	
+	// whether every change after lastSeq is still kept; a recovered room only
+	// has the changes since its last NEW
+	private boolean inHistory(int lastSeq)
+	{
+		if (lastSeq < 0 || lastSeq > seq || seq - lastSeq > HISTORY)
+			return false;
+		
+		for (int i = lastSeq + 1; i <= seq; i++)
+			if (history[i % HISTORY] == null || history[i % HISTORY].seq != i)
+				return false;
+		return true;
+	}
+	
+	// rebuilds the latest game in the log, with every seat empty; null if the log has none
+	static Room recover(Server server, File file) throws IOException
+	{
+		GameLog log = new GameLog(file, server.scheduler);
+		int start = log.records.size() - 1;
+		while (start >= 0 && log.records.get(start).type() != Frame.NEW)
+			start--;
+		if (start < 0)
+		{
+			log.delete();
+			return null;
+		}
+		
+		Frame first = log.records.get(start);
+		int seq = first.readVarint();
+		int numPlayers = first.readVarint();
+		
+		Room room = new Room(server, GameLog.roomName(file), numPlayers);
+		for (int i = 0; i < numPlayers; i++)
+		{
+			room.playerNames[i] = first.readText();
+			room.tokens[i] = first.readLong();
+			
+			Connection absent = new Connection(server.loop, null);
+			absent.closed = true;
+			absent.player = i;
+			room.connections.add(absent);
+		}
+		room.numClients = numPlayers;
+		
+		int[] letters = first.readLetters(Game.NUM_TILES);
+		int[] order = new int[Game.NUM_TILES];
+		for (int i = 0; i < Game.NUM_TILES; i++)
+			order[i] = first.readVarint();
+		
+		boolean replayed = false;
+		try
+		{
+			room.seq = seq - 1;
+			room.game.newGame(numPlayers, room.playerNames, letters, order);
+			room.clearTakes();
+			room.publish(ServerMessage.newGame(room.playerNames, letters, ++room.seq));
+			
+			for (int i = start + 1; i < log.records.size(); i++)
+				room.replay(log.records.get(i));
+			replayed = true;
+		}
+		finally
+		{
+			// replaying schedules the autoflipper
+			if (!replayed)
+			{
+				room.close();
+				log.close();
+			}
+		}
+		log.records = null;
+		room.log = log;
+		
+		// the flip timer restarts, and nobody is back yet
+		if (room.game.lastFlipTime >= 0)
+		{
+			room.game.lastFlipTime = System.currentTimeMillis();
+			room.scheduleAutoFlip();
+		}
+		for (int i = 0; i < numPlayers; i++)
+			room.game.presentPlayers[i] = false;
+		room.closeIfAllGone();
+		
+		return room;
+	}
+	
+	private void replay(Frame record) throws IOException
+	{
+		byte type = record.type();
+		if (type == Frame.FLIP)
+		{
+			if (game.randomIndeces.isEmpty() || game.randomIndeces.getFirst() != record.readVarint())
+				throw new IOException("log does not match its game");
+			flipTile();
+		}
+		else if (type == Frame.TAKE)
+		{
+			int player = record.readVarint();
+			if (!take(record.readWord(), player))
+				throw new IOException("log does not match its game");
+		}
+		else if (type == Frame.UNDO)
+		{
+			int index = record.readVarint();
+			if (index >= game.lastSteals.size())
+				throw new IOException("log does not match its game");
+			undo(index);
+			GameLog.readOrder(record, game);
+		}
+	}
+	
+	// may be called from any thread; the command runs after every command submitted before it
+	void submit(Runnable command)
+	{
+		inbox.add(command);
+		if (draining.compareAndSet(false, true))
+			execute();
+	}
+	
+	private void execute()
+	{
+		try
+		{
+			server.scheduler.execute(new Runnable()
+			{
+				public void run()
+				{
+					drain();
+				}
+			});
+		}
+		catch (RejectedExecutionException e)
+		{
+			// the server has closed
+		}
+	}
+	
+	private void drain()
+	{
+		Runnable command;
+		while ((command = inbox.poll()) != null)
+		{
+			try
+			{
+				command.run();
+			}
+			catch (RuntimeException e)
+			{
+				// a bad command must not take the room down
+				e.printStackTrace();
+			}
+		}
+		
+		draining.set(false);
+		// a command may have arrived after the last poll
+		if (!inbox.isEmpty() && draining.compareAndSet(false, true))
+			execute();
+	}
+	
+	// submits task to the inbox after delay milliseconds
+	private ScheduledFuture<?> schedule(final Runnable task, long delay)
+	{
+		return server.schedule(new Runnable()
+		{
+			public void run()
+			{
+				submit(task);
+			}
+		}, delay);
+	}
+	
+	void close()
+	{
+		closed = true;
+		cancel(flipper);
+		cancel(takeResolver);
+		
+		for (Connection connection : connections)
+			connection.close();
+		server.remove(this);
+		
+		// the room is over, so there is nothing left to recover
+		if (log != null)
+			log.archive();
+		log = null;
+	}
+	
+	private void newGame(int numPlayers, String[] playerNames)
+	{
+		cancel(flipper);
+		cancel(takeResolver);
+		takeResolver = null;
+		
+		int[] letters = game.newGame(numPlayers, playerNames);
+		clearTakes();
+		
+		if (log == null && GameLog.DIRECTORY != null)
+		{
+			try
+			{
+				log = new GameLog(GameLog.file(name), server.scheduler);
+			}
+			catch (IOException e)
+			{
+				e.printStackTrace();
+			}
+		}
+		
+		// NEW [seq] [number of players] [name] [token] ... [letters] [flip order]
+		Frame record = new Frame(Frame.NEW).writeVarint(seq + 1).writeVarint(numPlayers);
+		for (int i = 0; i < numPlayers; i++)
+			record.writeText(playerNames[i]).writeLong(tokens[i]);
+		record.writeLetters(letters);
+		for (int index : game.randomIndeces)
+			record.writeVarint(index);
+		record(record);
+		
+		publish(ServerMessage.newGame(game.playerNames, letters, ++seq));
+	}
+	
+	private void clearTakes()
+	{
+		for (int i = 0; i < rejectionRequested.length; i++)
+			rejectionRequested[i] = false;
+		
+		takeQueue = new ArrayList<Take>();
+		queuedWords = (HashSet<String>[])new HashSet[game.numPlayers];
+		formerTakes = (ArrayList<String>[])new ArrayList[game.numPlayers];
+		for (int i = 0; i < game.numPlayers; i++)
+		{
+			queuedWords[i] = new HashSet<String>();
+			formerTakes[i] = new ArrayList<String>();
+		}
+		ableToTake = new boolean[game.numPlayers];
+	}
+	
+	// appends to the game log, ending the record with when it happened; a log
+	// that fails is dropped rather than the game
+	private void record(Frame record)
+	{
+		if (log == null)
+			return;
+		
+		try
+		{
+			log.append(record.writeLong(System.currentTimeMillis()));
+		}
+		catch (IOException e)
+		{
+			e.printStackTrace();
+			log.close();
+			log = null;
+		}
+	}
+	
+	private void cancel(ScheduledFuture<?> future)
+	{
+		if (future != null)
+			future.cancel(false);
+	}
+	
+	// flips for the current player once their MAX_FLIP_TIME is up
+	private void scheduleAutoFlip()
+	{
+		cancel(flipper);
+		
+		final long flipTime = game.lastFlipTime;
+		long delay = flipTime + 1000L * Game.MAX_FLIP_TIME - System.currentTimeMillis();
+		flipper = schedule(new Runnable()
+		{
+			public void run()
+			{
+				if (game.lastFlipTime == flipTime && !game.randomIndeces.isEmpty())
+				{
+					server.metrics.autoFlips.incrementAndGet();
+					recordFlipInterval();
+					flipTile();
+				}
+			}
+		}, delay);
+	}
+	
+	private void recordFlipInterval()
+	{
+		if (game.lastFlipTime > 0)
+			server.metrics.flipInterval.record(1000000L * (System.currentTimeMillis() - game.lastFlipTime));
+	}
+	
+	// resolves the take queue right away, or when the tie window of its first
+	// take closes if ties are counted
+	private void scheduleTakes()
+	{
+		if (takeQueue.isEmpty() || takeResolver != null)
+			return;
+		
+		long delay = (Server.COUNT_TIES ? takeQueue.get(0).time + Server.TIE_BUFFER - System.currentTimeMillis() : 0);
+		takeResolver = schedule(new Runnable()
+		{
+			public void run()
+			{
+				takeResolver = null;
+				try
+				{
+					resolveTakes();
+				}
+				finally
+				{
+					scheduleTakes();
+				}
+			}
+		}, delay);
+	}
+	
+	private void resolveTakes()
+	{
+		if (Server.COUNT_TIES)
+		{
+			long time = System.currentTimeMillis();
+			if (!takeQueue.isEmpty() && time >= takeQueue.get(0).time + Server.TIE_BUFFER)
+			{
+				long endTime = takeQueue.get(0).time + Server.TIE_BUFFER;
+				long windowEnd = takeQueue.get(0).received + 1000000L * Server.TIE_BUFFER;
+				
+				ArrayList<Take> currentTakes = new ArrayList<Take>();
+				boolean[] takingPlayers = new boolean[game.numPlayers];
+				int i = 0;
+				while (i < takeQueue.size() && takeQueue.get(i).time <= endTime)
+				{
+					Take take = takeQueue.get(i);
+					
+					if (takingPlayers[take.player])
+						i++;
+					else
+					{
+						// off the queue first, so a take that fails to check cannot stay at its head
+						takeQueue.remove(i);
+						queuedWords[take.player].remove(take.word);
+						takingPlayers[take.player] = true;
+						
+						if (!ableToTake[take.player])
+							sendMessage("You are temporarily not allowed to steal.", take.player);
+						else if (game.canTake(take.word))
+						{
+							if (formerTakes[take.player].contains(take.word))
+								sendMessage("You already entered this word!", take.player);
+							else
+							{
+								int j = 0;
+								boolean considering = true;
+								while (j < currentTakes.size() && considering)
+								{
+									if (currentTakes.get(j).length() < take.length() && ActiveGame.overtakes(currentTakes.get(j).word, take.word))								
+										currentTakes.remove(j);
+									else if (currentTakes.get(j).length() > take.length() && ActiveGame.overtakes(take.word, currentTakes.get(j).word))								
+										considering = false;
+									else
+										j++;
+								}
+								
+								if (considering)
+								{
+									formerTakes[take.player].add(take.word);
+									currentTakes.add(take);
+								}
+							}
+						}
+					}
+				}
+				
+				server.metrics.tieDecisionLag.record(System.nanoTime() - windowEnd);
+				server.metrics.tieWindows.incrementAndGet();
+				
+				if (currentTakes.size() == 1)
+				{
+					Take take = currentTakes.get(0);
+					if (take(take.word, take.player))
+						server.metrics.takeLatency.record(System.nanoTime() - take.received);
+					resetTakers();
+				}
+				else if (currentTakes.size() > 1)
+				{
+					server.metrics.ties.incrementAndGet();
+					for (int j = 0; j < game.numPlayers; j++)
+						ableToTake[j] = false;
+					for (Take take : currentTakes)
+						ableToTake[take.player] = true;
+					
+					for (Take take : currentTakes)
+						sendMessage("TIE! (" + take.word + ")", take.player);
+				}
+			}
+		}
+		else
+		{
+			while (!takeQueue.isEmpty())
+			{
+				Take take = takeQueue.remove(0);
+				queuedWords[take.player].remove(take.word);
+				
+				if (take(take.word, take.player))
+					server.metrics.takeLatency.record(System.nanoTime() - take.received);
+				resetTakers();
+			}
+		}
+	}
+	
+	private boolean take(String word, int player)
+	{
+		ChangeData data = game.steal(word, player);
+		if (data == Game.NO_WORD)
+			return false;
+		
+		// TAKE [player] [word]
+		record(new Frame(Frame.TAKE).writeVarint(player).writeWord(word));
+		publish(ServerMessage.take(data, ++seq));
+		return true;
+	}
+	
+	private void undo(int index)
+	{
+		String word = game.lastSteals.get(index).taken.word;
+		game.undoChanges(index);
+		
+		// UNDO [ChangeData index] [number of unflipped tiles] [flip order]
+		record(GameLog.writeOrder(new Frame(Frame.UNDO).writeVarint(index), game));
+		publish(ServerMessage.undo(index, word, ++seq));
+	}
+	
+	// announces a state change and keeps it for clients that reconnect
+	private void publish(ServerMessage message)
+	{
+		history[message.seq % HISTORY] = message;
+		announce(message);
+	}
+	
+	private void announce(ServerMessage message)
+	{
+		for (int i = 0; i < numClients; i++)
+			connections.get(i).send(message);
+	}
+	
+	private void sendMessage(String message, int player)
+	{
+		connections.get(player).send(ServerMessage.show(message));
+	}
+	
+	private void flipTile()
+	{
+		int tileIndex = game.flipTile();
+		// FLIP [letter index]
+		record(new Frame(Frame.FLIP).writeVarint(tileIndex));
+		publish(ServerMessage.flip(tileIndex, ++seq));
+		scheduleAutoFlip();
+		
+		resetTakers();
+		
+		for (int i = 0; i < game.numPlayers; i++)
+		{
+			int j = 0;
+			while (j < formerTakes[i].size())
+			{
+				if (formerTakes[i].get(j).indexOf(game.tiles[tileIndex].letter + 'A') == -1)
+					j++;
+				else
+					formerTakes[i].remove(j);
+			}
+		}
+	}
+	
+	private void resetTakers()
+	{
+		for (int i = 0; i < game.numPlayers; i++)
+			ableToTake[i] = true;
+	}
+	
+	// called on the event loop
+	void disconnected(final Connection connection)
+	{
+		submit(new Runnable()
+		{
+			public void run()
+			{
+				if (!game.started)
+				{
+					// nobody left waiting for the game to start
+					for (Connection other : connections)
+						if (!other.closed)
+							return;
+					if (!closed)
+						close();
+					return;
+				}
+				
+				// the connection may never have been seated, or the seat may
+				// already have been resumed on another connection
+				if (!seated(connection))
+					return;
+				
+				game.presentPlayers[connection.player] = false;
+				closeIfAllGone();
+			}
+		});
+	}
+	
+	// gives dropped players time to reconnect before the room goes, unless
+	// not a tile has been flipped and there is nothing to come back to
+	private void closeIfAllGone()
+	{
+		if (!game.allGone() || closed)
+			return;
+		
+		if (game.lastFlipIndex < 0)
+		{
+			close();
+			return;
+		}
+		
+		schedule(new Runnable()
+		{
+			public void run()
+			{
+				if (game.allGone() && !closed)
+					close();
+			}
+		}, RECONNECT_TIME);
+	}
+	
+	// called on the event loop
+	void receive(Connection connection, String[] codes)
+	{
+		if (codes[0].equals("NEW"))
+			// NEW
+			submit(connection, Frame.NEW, 0, null);
+		else if (codes[0].equals("FLIP"))
+			// FLIP
+			submit(connection, Frame.FLIP, 0, null);
+		else if (codes[0].equals("TAKE"))
+		{
+			// TAKE [word]
+			if (connection.admitTake())
+				submit(connection, Frame.TAKE, 0, codes[1]);
+		}
+		else if (codes[0].equals("REJECT"))
+			// REJECT [ChangeData index]
+			submit(connection, Frame.REJECT, Integer.parseInt(codes[1]), null);
+		else if (codes[0].equals("MESSAGE"))
+			// MESSAGE [player index] [message]
+			submit(connection, Frame.MESSAGE, Integer.parseInt(codes[1]), codes[2].replace('\0', ' '));
+	}
+	
+	// called on the event loop
+	void receive(Connection connection, Frame frame) throws IOException
+	{
+		byte type = frame.type();
+		if (type == Frame.TAKE)
+		{
+			if (connection.admitTake())
+				submit(connection, type, 0, frame.readWord());
+		}
+		else if (type == Frame.REJECT)
+			submit(connection, type, frame.readVarint(), null);
+		else if (type == Frame.MESSAGE)
+		{
+			int index = frame.readVarint();
+			submit(connection, type, index, frame.readText());
+		}
+		else
+			submit(connection, type, 0, null);
+	}
+	
+	// the player is looked up when the command runs, since the connection may
+	// still be waiting for its seat when it sends
+	private void submit(final Connection connection, final byte type, final int number, final String text)
+	{
+		final long time = System.currentTimeMillis(), received = System.nanoTime();
+		submit(new Runnable()
+		{
+			public void run()
+			{
+				if (seated(connection))
+					process(connection.player, type, number, text, time, received);
+			}
+		});
+	}
+	
+	// only words of A to Z can be checked; a binary TAKE decodes anything else as '?'
+	private static boolean isLetters(String word)
+	{
+		for (int i = 0; i < word.length(); i++)
+			if (word.charAt(i) < 'A' || word.charAt(i) > 'Z')
+				return false;
+		return true;
+	}
+	
+	private boolean seated(Connection connection)
+	{
+		return connection.player >= 0 && connections.get(connection.player) == connection;
+	}
+	
+	private void process(int player, byte type, int number, String text, long time, long received)
+	{
+		// only messages make sense before there is a game
+		if (!game.started && type != Frame.MESSAGE)
+			return;
+		
+		if (type == Frame.NEW)
+		{
+			// NEW
+			game.presentPlayers[player] = false;
+			
+			if (game.allGone())
+				newGame(game.numPlayers, game.playerNames);
+			else
+				announce(ServerMessage.show("New game requested!"));
+		}
+		else if (type == Frame.FLIP)
+		{
+			// FLIP
+			if (player == game.currentPlayer && !game.randomIndeces.isEmpty())
+			{
+				recordFlipInterval();
+				flipTile();
+				game.presentPlayers[player] = true;
+			}
+		}
+		else if (type == Frame.TAKE)
+		{
+			// TAKE [word]
+			game.presentPlayers[player] = true;
+			if (text.length() < Game.MIN_LENGTH || text.length() > Game.MAX_LENGTH || !isLetters(text))
+				return;
+			if (!queuedWords[player].add(text))
+			{
+				server.metrics.duplicateTakes.incrementAndGet();
+				return;
+			}
+			takeQueue.add(new Take(text, player, time, received));
+			server.metrics.takeQueueDepth.record(takeQueue.size());
+			scheduleTakes();
+			
+			//ChangeData data = game.steal(codes[1], player);
+			//if (data == Game.NO_WORD)
+			//	continue;
+			//
+			//announce("TAKE " + data.toString().replace(' ', '\0'));
+		}
+		else if (type == Frame.REJECT)
+		{
+			// REJECT [ChangeData index]
+			int index = number;
+			
+			if (game.lastSteals.isEmpty() || index >= game.lastSteals.size()
+				|| index < game.lastSteals.size() - Game.REJECTABLE)
+				{
+					return;
+				}
+			
+			int neededPlayer = game.lastSteals.get(index).playerTaken;
+			
+			if (neededPlayer == player)
+			{
+				for (int i = index; i < game.lastSteals.size(); i++)
+					rejectionRequested[index] = false;
+				
+				undo(index);
+			}
+			else if (!rejectionRequested[index])
+			{
+				rejectionRequested[index] = true;
+				connections.get(neededPlayer).send(ServerMessage.rejectRequest(index));
+			}
+		}
+		else if (type == Frame.MESSAGE)
+		{
+			// MESSAGE [player index] [message]
+			announce(ServerMessage.message(number, text));
+		}
+	}
+}
+
+// What a Server is doing, for sizing hosts and tuning TIE_BUFFER: served as
+// Prometheus text over local HTTP, and as the attributes of an MBean. Times
+// are recorded in nanoseconds and exported in seconds.
+class ServerMetrics implements DynamicMBean
+{
+	static final int HTTP_PORT = 9189; // for a server on MainScreen.PORT; others keep the same offset
+	static final String PREFIX = "speedscrabble_";
+	static final double[] QUANTILES = {0.5, 0.9, 0.99, 1};
+	
+	final Server server;
+	final Histogram takeLatency, takeQueueDepth, tieDecisionLag, flipInterval;
+	final AtomicLong tieWindows, ties, autoFlips, throttledTakes, duplicateTakes;
+	
+	ServerMetrics(Server server)
+	{
+		this.server = server;
+		takeLatency = new Histogram();
+		takeQueueDepth = new Histogram();
+		tieDecisionLag = new Histogram();
+		flipInterval = new Histogram();
+		tieWindows = new AtomicLong();
+		ties = new AtomicLong();
+		autoFlips = new AtomicLong();
+		throttledTakes = new AtomicLong();
+		duplicateTakes = new AtomicLong();
+	}
+	
+	// serves GET /metrics on the loopback address
+	void serve(int port) throws IOException
+	{
+		com.sun.net.httpserver.HttpServer http = com.sun.net.httpserver.HttpServer.create(
+			new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+		http.createContext("/metrics", new com.sun.net.httpserver.HttpHandler()
+		{
+			public void handle(com.sun.net.httpserver.HttpExchange exchange) throws IOException
+			{
+				StringBuilder text = new StringBuilder();
+				collect(text, null);
+				byte[] body = text.toString().getBytes(Connection.CHARSET);
+				
+				exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+				exchange.sendResponseHeaders(200, body.length);
+				OutputStream output = exchange.getResponseBody();
+				output.write(body);
+				output.close();
+			}
+		});
+		http.start();
+	}
+	
+	void register(int port) throws JMException
+	{
+		java.lang.management.ManagementFactory.getPlatformMBeanServer().registerMBean(this,
+			new ObjectName("SpeedScrabble:type=Server,port=" + port));
+	}
+	
+	// writes every metric to text and every sample to samples, skipping either if null
+	private void collect(StringBuilder text, Map<String, Double> samples)
+	{
+		summary(text, samples, "take_latency_seconds", "Time from a TAKE arriving to its steal being announced.",
+			takeLatency, 1e-9);
+		summary(text, samples, "take_queue_depth", "Takes waiting in a room's queue as each one arrives.",
+			takeQueueDepth, 1);
+		header(text, "takes_throttled_total", "counter", "Takes dropped because a client sent them too fast.");
+		sample(text, samples, "takes_throttled_total", null, throttledTakes.get());
+		header(text, "takes_duplicate_total", "counter", "Takes dropped because the same word was already queued.");
+		sample(text, samples, "takes_duplicate_total", null, duplicateTakes.get());
+		summary(text, samples, "tie_decision_lag_seconds", "Time from a tie window closing to its takes being decided.",
+			tieDecisionLag, 1e-9);
+		header(text, "tie_windows_total", "counter", "Tie windows decided while ties are counted.");
+		sample(text, samples, "tie_windows_total", null, tieWindows.get());
+		header(text, "ties_total", "counter", "Tie windows that ended in a tie.");
+		sample(text, samples, "ties_total", null, ties.get());
+		summary(text, samples, "flip_interval_seconds", "Time between flips, at most MAX_FLIP_TIME = "
+			+ Game.MAX_FLIP_TIME + "s.", flipInterval, 1e-9);
+		header(text, "auto_flips_total", "counter", "Flips made for a player who used up MAX_FLIP_TIME.");
+		sample(text, samples, "auto_flips_total", null, autoFlips.get());
+		
+		ArrayList<Room> rooms;
+		synchronized (server)
+		{
+			rooms = new ArrayList<Room>(server.rooms.values());
+		}
+		header(text, "rooms", "gauge", "Open rooms.");
+		sample(text, samples, "rooms", null, rooms.size());
+		header(text, "write_backlog_bytes", "gauge", "Bytes queued for each client but not yet written.");
+		for (Room room : rooms)
+			for (int i = 0; i < room.numClients; i++)
+				sample(text, samples, "write_backlog_bytes", "room=\"" + escape(room.name) + "\",player=\"" + i + "\"",
+					room.connections.get(i).queued.get());
+	}
+	
+	private static void summary(StringBuilder text, Map<String, Double> samples, String name, String help,
+		Histogram histogram, double scale)
+	{
+		header(text, name, "summary", help);
+		for (double quantile : QUANTILES)
+			sample(text, samples, name, "quantile=\"" + quantile + "\"", histogram.percentile(quantile) * scale);
+		sample(text, samples, name + "_sum", null, histogram.sum.get() * scale);
+		sample(text, samples, name + "_count", null, histogram.count());
+	}
+	
+	private static void header(StringBuilder text, String name, String type, String help)
+	{
+		if (text != null)
+			text.append("# HELP " + PREFIX + name + " " + help + "\n# TYPE " + PREFIX + name + " " + type + "\n");
+	}
+	
+	private static void sample(StringBuilder text, Map<String, Double> samples, String name, String labels, double value)
+	{
+		String key = name + (labels == null ? "" : "{" + labels + "}");
+		if (text != null)
+			text.append(PREFIX + key + " " + value + "\n");
+		if (samples != null)
+			samples.put(key, value);
+	}
+	
+	private static String escape(String label)
+	{
+		return label.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n").replace('\0', ' ');
+	}
+	
+	private LinkedHashMap<String, Double> samples()
+	{
+		LinkedHashMap<String, Double> samples = new LinkedHashMap<String, Double>();
+		collect(null, samples);
+		return samples;
+	}
+	
+	public Object getAttribute(String attribute) throws AttributeNotFoundException
+	{
+		Double value = samples().get(attribute);
+		if (value == null)
+			throw new AttributeNotFoundException(attribute);
+		return value;
+	}
+	
+	public AttributeList getAttributes(String[] attributes)
+	{
+		LinkedHashMap<String, Double> samples = samples();
+		AttributeList list = new AttributeList();
+		for (String attribute : attributes)
+			if (samples.containsKey(attribute))
+				list.add(new Attribute(attribute, samples.get(attribute)));
+		return list;
+	}
+	
+	public void setAttribute(Attribute attribute) throws AttributeNotFoundException
+	{
+		throw new AttributeNotFoundException("read-only: " + attribute.getName());
+	}
+	
+	public AttributeList setAttributes(AttributeList attributes)
+	{
+		return new AttributeList();
+	}
+	
+	public Object invoke(String action, Object[] params, String[] signature) throws ReflectionException
+	{
+		throw new ReflectionException(new NoSuchMethodException(action));
+	}
+	
+	public MBeanInfo getMBeanInfo()
+	{
+		Set<String> names = samples().keySet();
+		MBeanAttributeInfo[] attributes = new MBeanAttributeInfo[names.size()];
+		int i = 0;
+		for (String name : names)
+			attributes[i++] = new MBeanAttributeInfo(name, "java.lang.Double", name, true, false, false);
+		
+		return new MBeanInfo(getClass().getName(), "Speed Scrabble server metrics", attributes, null, null, null);
+	}
+}
+
+// Append-only log of a room's games, so that a restarted server can rebuild
+// them. Records are [length] [CRC-32] [frame] in a memory-mapped file; they
+// are forced to disk together every COMMIT_TIME rather than one by one. The
+// log of a closed room moves to the ARCHIVE folder, where it can be replayed.
+class GameLog
+{
+	static final String SUFFIX = ".log";
+	static final String ARCHIVE = "archive";
+	static final int CHUNK_SIZE = 1 << 20; // bytes mapped at a time
+	static final int COMMIT_TIME = 50; // in milliseconds
+	static File DIRECTORY = null; // where rooms log their games; null for no logging
+	
+	final File file;
+	final FileChannel channel;
+	MappedByteBuffer buffer;
+	long offset; // of the mapped chunk in the file
+	boolean dirty;
+	final ScheduledFuture<?> committer;
+	
+	ArrayList<Frame> records; // what the file held when opened
+	
+	GameLog(File file, ScheduledExecutorService scheduler) throws IOException
+	{
+		this.file = file;
+		channel = new RandomAccessFile(file, "rw").getChannel();
+		
+		// appends from the first torn or missing record
+		records = new ArrayList<Frame>();
+		offset = read(channel, records);
+		channel.truncate(offset);
+		
+		buffer = channel.map(FileChannel.MapMode.READ_WRITE, offset, CHUNK_SIZE);
+		committer = scheduler.scheduleWithFixedDelay(new Runnable()
+		{
+			public void run()
+			{
+				commit();
+			}
+		}, COMMIT_TIME, COMMIT_TIME, TimeUnit.MILLISECONDS);
+	}
+	
+	// the records of a log that is not being written
+	static ArrayList<Frame> read(File file) throws IOException
+	{
+		ArrayList<Frame> records = new ArrayList<Frame>();
+		FileChannel channel = new FileInputStream(file).getChannel();
+		try
+		{
+			read(channel, records);
+		}
+		finally
+		{
+			channel.close();
+		}
+		return records;
+	}
+	
+	// reads records up to the first torn or missing one and returns where it stopped
+	private static long read(FileChannel channel, ArrayList<Frame> records) throws IOException
+	{
+		ByteBuffer bytes = ByteBuffer.allocate((int)channel.size());
+		while (bytes.hasRemaining() && channel.read(bytes) >= 0);
+		bytes.flip();
+		
+		long end = 0;
+		while (bytes.remaining() >= 8)
+		{
+			int length = bytes.getInt(), crc = bytes.getInt();
+			if (length <= 0 || length > bytes.remaining())
+				break;
+			
+			byte[] data = new byte[length];
+			bytes.get(data);
+			if (checksum(data, length) != crc)
+				break;
+			records.add(new Frame(data));
+			end = bytes.position();
+		}
+		return end;
+	}
+	
+	static File file(String roomName) throws IOException
+	{
+		DIRECTORY.mkdirs();
+		return new File(DIRECTORY, URLEncoder.encode(roomName, "UTF-8") + SUFFIX);
+	}
+	
+	static String roomName(File file) throws IOException
+	{
+		String name = file.getName();
+		return URLDecoder.decode(name.substring(0, name.length() - SUFFIX.length()), "UTF-8");
+	}
+	
+	// the unflipped tiles in their order, which an UNDO record ends with since
+	// the tiles an undo puts back land at random places
+	static Frame writeOrder(Frame record, ActiveGame game)
+	{
+		record.writeVarint(game.randomIndeces.size());
+		for (int index : game.randomIndeces)
+			record.writeVarint(index);
+		return record;
+	}
+	
+	static void readOrder(Frame record, ActiveGame game) throws IOException
+	{
+		int[] order = new int[record.readVarint()];
+		if (order.length != game.randomIndeces.size())
+			throw new IOException("log does not match its game");
+		for (int i = 0; i < order.length; i++)
+			order[i] = record.readVarint();
+		game.reorder(order);
+	}
+	
+	private static int checksum(byte[] data, int length)
+	{
+		CRC32 crc = new CRC32();
+		crc.update(data, 0, length);
+		return (int)crc.getValue();
+	}
+	
+	synchronized void append(Frame record) throws IOException
+	{
+		if (buffer.remaining() < 8 + record.length)
+		{
+			buffer.force();
+			offset += buffer.position();
+			buffer = channel.map(FileChannel.MapMode.READ_WRITE, offset, Math.max(CHUNK_SIZE, 8 + record.length));
+		}
+		
+		buffer.putInt(record.length).putInt(checksum(record.data, record.length));
+		buffer.put(record.data, 0, record.length);
+		dirty = true;
+	}
+	
+	// forces everything appended since the last commit in one go
+	synchronized void commit()
+	{
+		if (!dirty || buffer == null)
+			return;
+		
+		buffer.force();
+		dirty = false;
+	}
+	
+	synchronized void close()
+	{
+		committer.cancel(false);
+		commit();
+		buffer = null;
+		try
+		{
+			channel.close();
+		}
+		catch (IOException e) {}
+	}
+	
+	void delete()
+	{
+		close();
+		file.delete();
+	}
+	
+	// keeps the log for replays, out of the way of recovery
+	void archive()
+	{
+		close();
+		
+		File archive = new File(file.getParentFile(), ARCHIVE);
+		archive.mkdirs();
+		String name = file.getName();
+		name = name.substring(0, name.length() - SUFFIX.length()) + "." + System.currentTimeMillis() + SUFFIX;
+		if (!file.renameTo(new File(archive, name)))
+			System.err.println("Could not archive " + file);
+	}
+}
+
+// One logged game that can be stepped through, sought and played back at its
+// recorded pace. A copy of the game is kept every CHECKPOINT_INTERVAL moves,
+// so seeking finds the nearest checkpoint by binary search and replays at most
+// that many moves from it.
+class Replay
+{
+	static final int CHECKPOINT_INTERVAL = 16;
+	
+	final String[] playerNames;
+	final int[] letters, order;
+	final ArrayList<Frame> moves;
+	final long[] times; // of the NEW, then of each move
+	
+	final ActiveGame[] checkpoints;
+	final int[] checkpointMoves;
+	int numCheckpoints;
+	
+	final ActiveGame game;
+	int position; // number of moves applied to game
+	
+	// records holds a NEW and the moves after it
+	Replay(java.util.List<Frame> records) throws IOException
+	{
+		Frame first = new Frame(records.get(0).data);
+		if (first.type() != Frame.NEW)
+			throw new IOException("not a game");
+		
+		first.readVarint(); // seq
+		int numPlayers = first.readVarint();
+		playerNames = new String[numPlayers];
+		for (int i = 0; i < numPlayers; i++)
+		{
+			playerNames[i] = first.readText();
+			first.readLong(); // token
+		}
+		letters = first.readLetters(Game.NUM_TILES);
+		order = new int[Game.NUM_TILES];
+		for (int i = 0; i < Game.NUM_TILES; i++)
+			order[i] = first.readVarint();
+		
+		moves = new ArrayList<Frame>(records.subList(1, records.size()));
+		times = new long[moves.size() + 1];
+		times[0] = first.readLong();
+		
+		game = new ActiveGame();
+		game.newGame(numPlayers, playerNames, letters, order);
+		checkpoints = new ActiveGame[moves.size() / CHECKPOINT_INTERVAL + 1];
+		checkpointMoves = new int[checkpoints.length];
+		
+		// plays the whole game once to check it and take its checkpoints
+		while (true)
+		{
+			if (position % CHECKPOINT_INTERVAL == 0)
+			{
+				checkpoints[numCheckpoints] = game.copy();
+				checkpointMoves[numCheckpoints] = position;
+				numCheckpoints++;
+			}
+			if (position == moves.size())
+				break;
+			long time = step();
+			times[position] = time;
+		}
+		seek(0);
+	}
+	
+	// every game in a room's log
+	static ArrayList<Replay> load(File file) throws IOException
+	{
+		ArrayList<Frame> records = GameLog.read(file);
+		ArrayList<Replay> replays = new ArrayList<Replay>();
+		
+		int start = 0;
+		for (int i = 1; i <= records.size(); i++)
+			if (i == records.size() || records.get(i).type() == Frame.NEW)
+			{
+				replays.add(new Replay(records.subList(start, i)));
+				start = i;
+			}
+		return replays;
+	}
+	
+	int numMoves()
+	{
+		return moves.size();
+	}
+	
+	boolean finished()
+	{
+		return position == moves.size();
+	}
+	
+	// applies the next move and returns when it was made
+	long step() throws IOException
+	{
+		Frame move = new Frame(moves.get(position).data);
+		byte type = move.type();
+		if (type == Frame.FLIP)
+		{
+			if (game.randomIndeces.isEmpty() || game.flipTile() != move.readVarint())
+				throw new IOException("move " + position + " does not match the game");
+		}
+		else if (type == Frame.TAKE)
+		{
+			int player = move.readVarint();
+			if (game.steal(move.readWord(), player) == Game.NO_WORD)
+				throw new IOException("move " + position + " does not match the game");
+		}
+		else if (type == Frame.UNDO)
+		{
+			int index = move.readVarint();
+			if (index >= game.lastSteals.size())
+				throw new IOException("move " + position + " does not match the game");
+			game.undoChanges(index);
+			GameLog.readOrder(move, game);
+		}
+		
+		position++;
+		return move.readLong();
+	}
+	
+	// puts the game as it was after the given number of moves
+	void seek(int move) throws IOException
+	{
+		move = Math.max(0, Math.min(move, moves.size()));
+		if (move < position || move - position > CHECKPOINT_INTERVAL)
+		{
+			int i = Arrays.binarySearch(checkpointMoves, 0, numCheckpoints, move);
+			if (i < 0)
+				i = -i - 2;
+			game.copyFrom(checkpoints[i]);
+			position = checkpointMoves[i];
+		}
+		
+		while (position < move)
+			step();
+	}
+	
+	// how long after the last move the next one was made, in milliseconds
+	long delay()
+	{
+		return (finished() ? 0 : times[position + 1] - times[position]);
+	}
+	
+	String describe(int move) throws IOException
+	{
+		Frame frame = new Frame(moves.get(move).data);
+		byte type = frame.type();
+		if (type == Frame.FLIP)
+			return "FLIP " + (char)('A' + letters[frame.readVarint()]);
+		else if (type == Frame.TAKE)
+		{
+			int player = frame.readVarint();
+			return "TAKE " + playerNames[player] + " " + frame.readWord();
+		}
+		else
+			return "UNDO " + frame.readVarint();
+	}
+	
+	// Replay [log file] [game number] [first move] [speed]: prints the moves of
+	// one game from the first move on, at speed times the recorded pace, or
+	// as fast as possible for speed 0; closed rooms' logs are in GameLog.ARCHIVE
+	public static void main(String ... args) throws IOException, InterruptedException
+	{
+		Dictionary.load();
+		
+		ArrayList<Replay> replays = load(new File(args[0]));
+		if (replays.isEmpty())
+		{
+			System.err.println("No games in " + args[0]);
+			return;
+		}
+		Replay replay = replays.get(args.length > 1 ? Integer.parseInt(args[1]) : replays.size() - 1);
+		replay.seek(args.length > 2 ? Integer.parseInt(args[2]) : 0);
+		double speed = (args.length > 3 ? Double.parseDouble(args[3]) : 0);
+		
+		while (!replay.finished())
+		{
+			if (speed > 0)
+				Thread.sleep((long)(replay.delay() / speed));
+			
+			int move = replay.position;
+			replay.step();
+			System.out.println(move + "\t" + replay.describe(move) + "\t" + Arrays.toString(replay.game.scores));
+		}
+		
+		for (int i = 0; i < replay.game.numPlayers; i++)
+			System.out.println(replay.playerNames[i] + ": " + replay.game.wordPiles[i]);
+	}
+}
+
+// Shows a Replay in a GameFrame at speed times the recorded pace, or as fast
+// as the frame keeps up for speed 0. SPACE pauses and resumes, and NEW GAME starts the game over.
+class ReplayClient extends Client
+{
+	final Replay replay;
+	final double speed;
+	final GameFrame frame;
+	Timer player;
+	boolean paused;
+	
+	ReplayClient(Replay replay, double speed)
+	{
+		super("Replay");
+		this.replay = replay;
+		this.speed = speed;
+		game = replay.game;
+		frame = new GameFrame(this);
+	}
+	
+	void play()
+	{
+		frame.start();
+		frame.changeAll();
+		frame.setVisible(true);
+		playNext();
+	}
+	
+	private void playNext()
+	{
+		if (paused || replay.finished())
+			return;
+		
+		player = new Timer(speed > 0 ? (int)(replay.delay() / speed) : 0, new ActionListener()
+		{
+			public void actionPerformed(ActionEvent e)
+			{
+				try
+				{
+					int move = replay.position;
+					replay.step();
+					frame.showMessage(replay.describe(move));
+				}
+				catch (IOException e_)
+				{
+					JOptionPane.showMessageDialog(frame, "Error.");
+					return;
+				}
+				frame.changeAll();
+				playNext();
+			}
+		});
+		player.setRepeats(false);
+		player.start();
+	}
+	
+	void flipTile()
+	{
+		paused = !paused;
+		if (!paused)
+			playNext();
+		else if (player != null)
+			player.stop();
+	}
+	
+	void requestNewGame()
+	{
+		try
+		{
+			replay.seek(0);
+		}
+		catch (IOException e_)
+		{
+			JOptionPane.showMessageDialog(frame, "Error.");
+		}
+		frame.changeAll();
+		if (player != null && !player.isRunning())
+			playNext();
+	}
+	
+	void attemptTake(String word) {}
+	
+	void requestRejection(int index) {}
+	
+	void sendMessage(String s) {}
+	
+	void close()
+	{
+		if (player != null)
+			player.stop();
+		frame.destroy();
+	}
+	
+	void onNewGame() {}
+	
+	void onFlip(int tileIndex) {}
+	
+	void onTake(ChangeData data) {}
+	
+	void onRejectRequest(int index) {}
+	
+	void onUndo(String word) {}
+	
+	void onMessage(int player, String message) {}
+	
+	void onShow(String message) {}
+	
+	void onSnapshot() {}
+	
+	void onThrottle(int millis) {}
+	
+	void onDisconnect() {}
+	
+	// ReplayClient [log file] [game number] [first move] [speed]
+	public static void main(String ... args) throws IOException
+	{
+		Dictionary.load();
+		
+		ArrayList<Replay> replays = Replay.load(new File(args[0]));
+		if (replays.isEmpty())
+		{
+			System.err.println("No games in " + args[0]);
+			return;
+		}
+		final Replay replay = replays.get(args.length > 1 ? Integer.parseInt(args[1]) : replays.size() - 1);
+		replay.seek(args.length > 2 ? Integer.parseInt(args[2]) : 0);
+		final double speed = (args.length > 3 ? Double.parseDouble(args[3]) : 1);
+		
+		EventQueue.invokeLater(new Runnable()
+		{
+			public void run()
+			{
+				new ReplayClient(replay, speed).play();
+			}
+		});
+	}
+}
+
+interface ConnectionHandler
+{
+	void connected(Connection connection);
+	
+	void received(Connection connection, String line);
+	
+	void received(Connection connection, Frame frame) throws IOException;
+	
+	void disconnected(Connection connection);
+}
+
+// One client socket owned by an EventLoop. Lines are read and written as
+// UTF-8 with a '\n' terminator, or as length-prefixed frames once the
+// client has negotiated binary.
+class Connection
+{
+	static final int BUFFER_SIZE = 8192;
+	static final int MAX_LINE = 65536; // longest line or frame
+	static final int MAX_QUEUED = 1 << 20; // in bytes
+	static final Charset CHARSET = Charset.forName("UTF-8");
+	
+	final EventLoop loop;
+	final SocketChannel channel;
+	SelectionKey key;
+	ByteBuffer in, out;
+	byte[] next;
+	final ConcurrentLinkedQueue<byte[]> outbox;
+	final AtomicInteger queued;
+	final AtomicBoolean writeRequested;
+	volatile boolean closed;
+	
+	Room room;
+	int player;
+	volatile boolean binary, delta;
+	
+	// TAKE admission, owned by the event loop: a token bucket refilled at
+	// TAKE_RATE per second that holds at most TAKE_BURST takes
+	static final double TAKE_RATE = 4;
+	static final int TAKE_BURST = 8;
+	double takeTokens;
+	long lastRefill;
+	boolean throttled;
+	
+	Connection(EventLoop loop, SocketChannel channel)
+	{
+		this.loop = loop;
+		this.channel = channel;
+		in = ByteBuffer.allocate(BUFFER_SIZE);
+		out = ByteBuffer.allocate(BUFFER_SIZE);
+		out.flip();
+		outbox = new ConcurrentLinkedQueue<byte[]>();
+		queued = new AtomicInteger();
+		writeRequested = new AtomicBoolean();
+		player = -1;
+		takeTokens = TAKE_BURST;
+		lastRefill = System.nanoTime();
+	}
+	
+	// called on the event loop; false if the TAKE has to be dropped, in which
+	// case the client is told once when it can send again
+	boolean admitTake()
+	{
+		long now = System.nanoTime();
+		takeTokens = Math.min(TAKE_BURST, takeTokens + (now - lastRefill) * TAKE_RATE / 1e9);
+		lastRefill = now;
+		
+		if (takeTokens >= 1)
+		{
+			takeTokens--;
+			throttled = false;
+			return true;
+		}
+		
+		if (room != null)
+			room.server.metrics.throttledTakes.incrementAndGet();
+		if (!throttled)
+		{
+			throttled = true;
+			send(ServerMessage.throttle((int)Math.ceil((1 - takeTokens) * 1000 / TAKE_RATE)));
+		}
+		return false;
+	}
+	
+	// may be called from any thread
+	void send(String line)
+	{
+		send((line + "\n").getBytes(CHARSET));
+	}
+	
+	// may be called from any thread
+	void send(ServerMessage message)
+	{
+		send(message.encoding(binary, delta));
+	}
+	
+	// never blocks: the bytes wait in the outbox until the event loop can write
+	// them, and everything queued meanwhile goes out together
+	private void send(byte[] bytes)
+	{
+		if (closed)
+			return;
+		
+		if (queued.addAndGet(bytes.length) > MAX_QUEUED)
+		{
+			lagging();
+			return;
+		}
+		
+		outbox.add(bytes);
+		if (writeRequested.compareAndSet(false, true))
+			loop.requestWrite(this);
+	}
+	
+	// the client is not reading fast enough to keep up with its room; a binary
+	// client catches up when it resumes its seat, from a snapshot if need be
+	private void lagging()
+	{
+		outbox.clear();
+		close();
+	}
+	
+	void close()
+	{
+		loop.requestClose(this);
+	}
+	
+	// reads whatever is available and hands every complete line or frame to
+	// handler; false at end of stream
+	boolean read(ConnectionHandler handler) throws IOException
+	{
+		if (channel.read(in) == -1)
+			return false;
+		
+		byte[] buffer = in.array();
+		int start = 0, end = in.position();
+		while (!closed)
+		{
+			if (binary)
+			{
+				// [varint length] [type] [payload]
+				int length = 0, shift = 0, i = start;
+				while (i < end && (buffer[i] & 0x80) != 0)
+				{
+					length |= (buffer[i++] & 0x7F) << shift;
+					shift += 7;
+					if (shift > 21)
+						throw new IOException("bad frame length");
+				}
+				if (i == end)
+					break;
+				length |= buffer[i++] << shift;
+				if (length <= 0 || length > MAX_LINE)
+					throw new IOException("bad frame length " + length);
+				if (end - i < length)
+					break;
+				
+				start = i + length;
+				handler.received(this, new Frame(Arrays.copyOfRange(buffer, i, start)));
+			}
+			else
+			{
+				int i = start;
+				while (i < end && buffer[i] != '\n')
+					i++;
+				if (i == end)
+					break;
+				
+				int lineEnd = i > start && buffer[i - 1] == '\r' ? i - 1 : i;
+				String line = new String(buffer, start, lineEnd - start, CHARSET);
+				start = i + 1;
+				handler.received(this, line);
+			}
+		}
+		
+		in.limit(in.position());
+		in.position(start);
+		in.compact();
+		
+		if (!in.hasRemaining())
+		{
+			if (in.capacity() >= MAX_LINE)
+				throw new IOException("line too long");
+			ByteBuffer larger = ByteBuffer.allocate(2 * in.capacity());
+			in.flip();
+			larger.put(in);
+			in = larger;
+		}
+		
+		return true;
+	}
+	
+	// writes as much of the outbox as the socket takes, several lines per write;
+	// returns true once everything queued has been written
+	boolean flush() throws IOException
+	{
+		while (true)
+		{
+			if (!out.hasRemaining())
+			{
+				out.clear();
+				while (true)
+				{
+					if (next == null)
+					{
+						next = outbox.poll();
+						if (next == null)
+							break;
+						queued.addAndGet(-next.length);
+					}
+					
+					if (next.length > out.remaining())
+					{
+						if (out.position() > 0)
+							break;
+						out = ByteBuffer.allocate(next.length);
+					}
+					out.put(next);
+					next = null;
+				}
+				out.flip();
+				
+				if (!out.hasRemaining())
+					return true;
+			}
+			
+			channel.write(out);
+			if (out.hasRemaining())
+				return false;
+		}
+	}
+}
+
+// A binary protocol message, used once a client has sent BINARY in its
+// NEW_CLIENT handshake and been answered with WELCOME [index] BINARY. A client
+// that also gets DELTA is sent STEAL, the word-level change, instead of TAKE. On the
+// wire a frame is its varint length followed by a type byte and the payload.
+// Numbers are varints, zigzag encoded where they may be negative; words are a
+// varint length and their letters packed 5 bits each; text is a varint length
+// and UTF-8.
+class Frame
+{
+	static final String BINARY = "BINARY", DELTA = "DELTA";
+	static final byte NEW = 1, FLIP = 2, TAKE = 3, REJECT = 4, REJECT_REQ = 5, UNDO = 6, MESSAGE = 7, SHOW = 8, STEAL = 9, SNAPSHOT = 10,
+		THROTTLE = 11;
+	static final int NO_LETTER = 31;
+	
+	byte[] data;
+	int length, position;
+	
+	// an empty frame for writing
+	Frame(byte type)
+	{
+		data = new byte[16];
+		data[0] = type;
+		length = 1;
+	}
+	
+	// a received frame for reading
+	Frame(byte[] data)
+	{
+		this.data = data;
+		length = data.length;
+		position = 1;
+	}
+	
+	byte type()
+	{
+		return data[0];
+	}
+	
+	// the frame with its length prefix, as sent on the wire
+	byte[] toBytes()
+	{
+		int prefix = 1;
+		for (int n = length >>> 7; n != 0; n >>>= 7)
+			prefix++;
+		
+		byte[] bytes = new byte[prefix + length];
+		int n = length, i = 0;
+		while ((n & ~0x7F) != 0)
+		{
+			bytes[i++] = (byte)((n & 0x7F) | 0x80);
+			n >>>= 7;
+		}
+		bytes[i++] = (byte)n;
+		System.arraycopy(data, 0, bytes, i, length);
+		return bytes;
+	}
+	
+	private void put(int b)
+	{
+		if (length == data.length)
+			data = Arrays.copyOf(data, 2 * length);
+		data[length++] = (byte)b;
+	}
+	
+	Frame writeVarint(int n)
+	{
+		while ((n & ~0x7F) != 0)
+		{
+			put((n & 0x7F) | 0x80);
+			n >>>= 7;
+		}
+		put(n);
+		return this;
+	}
+	
+	Frame writeSigned(int n)
+	{
+		return writeVarint((n << 1) ^ (n >> 31));
+	}
+	
+	Frame writeLong(long n)
+	{
+		for (int shift = 56; shift >= 0; shift -= 8)
+			put((int)(n >>> shift));
+		return this;
+	}
+	
+	Frame writeWord(String word)
+	{
+		int[] letters = new int[word.length()];
+		for (int i = 0; i < letters.length; i++)
+		{
+			int letter = word.charAt(i) - 'A';
+			letters[i] = (letter >= 0 && letter < Game.NUM_LETTERS ? letter : NO_LETTER);
+		}
+		
+		writeVarint(letters.length);
+		return writeLetters(letters);
+	}
+	
+	Frame writeLetters(int[] letters)
+	{
+		int bits = 0, numBits = 0;
+		for (int letter : letters)
+		{
+			bits |= letter << numBits;
+			numBits += 5;
+			if (numBits >= 8)
+			{
+				put(bits);
+				bits >>>= 8;
+				numBits -= 8;
+			}
+		}
+		if (numBits > 0)
+			put(bits);
+		return this;
+	}
+	
+	Frame writeText(String text)
+	{
+		byte[] bytes = text.getBytes(Connection.CHARSET);
+		writeVarint(bytes.length);
+		for (byte b : bytes)
+			put(b);
+		return this;
+	}
+	
+	private int get() throws IOException
+	{
+		if (position >= length)
+			throw new IOException("truncated frame");
+		return data[position++] & 0xFF;
+	}
+	
+	int readVarint() throws IOException
+	{
+		int n = 0;
+		for (int shift = 0; shift < 32; shift += 7)
+		{
+			int b = get();
+			n |= (b & 0x7F) << shift;
+			if ((b & 0x80) == 0)
+				return n;
+		}
+		throw new IOException("bad varint");
+	}
+	
+	int readSigned() throws IOException
+	{
+		int n = readVarint();
+		return (n >>> 1) ^ -(n & 1);
+	}
+	
+	// varints straight from a stream, for frame lengths and files
+	static void writeVarint(DataOutput out, int n) throws IOException
+	{
+		while ((n & ~0x7F) != 0)
+		{
+			out.writeByte((n & 0x7F) | 0x80);
+			n >>>= 7;
+		}
+		out.writeByte(n);
+	}
+	
+	static int readVarint(DataInput in) throws IOException
+	{
+		int n = 0;
+		for (int shift = 0; shift < 32; shift += 7)
+		{
+			int b = in.readByte();
+			n |= (b & 0x7F) << shift;
+			if ((b & 0x80) == 0)
+				return n;
+		}
+		throw new IOException("bad varint");
+	}
+	
+	long readLong() throws IOException
+	{
+		long n = 0;
+		for (int i = 0; i < 8; i++)
+			n = (n << 8) | get();
+		return n;
+	}
+	
+	String readWord() throws IOException
+	{
+		int[] letters = readLetters(readVarint());
+		char[] word = new char[letters.length];
+		for (int i = 0; i < letters.length; i++)
+			word[i] = (letters[i] < Game.NUM_LETTERS ? (char)('A' + letters[i]) : '?');
+		return new String(word);
+	}
+	
+	int[] readLetters(int count) throws IOException
+	{
+		if (count < 0 || count > 8 * (length - position) / 5)
+			throw new IOException("truncated frame");
+		
+		int[] letters = new int[count];
+		int bits = 0, numBits = 0;
+		for (int i = 0; i < count; i++)
+		{
+			if (numBits < 5)
+			{
+				bits |= get() << numBits;
+				numBits += 8;
+			}
+			letters[i] = bits & 0x1F;
+			bits >>>= 5;
+			numBits -= 5;
+		}
+		return letters;
+	}
+	
+	String readText() throws IOException
+	{
+		int n = readVarint();
+		if (n < 0 || n > length - position)
+			throw new IOException("truncated frame");
+		
+		String text = new String(data, position, n, Connection.CHARSET);
+		position += n;
+		return text;
+	}
+}
+
+// A message from a room to its clients. Its text line and binary frame are
+// each encoded at most once, however many clients it goes to.
+class ServerMessage
+{
+	final String line;
+	final Frame frame;
+	ServerMessage delta; // sent instead to clients with DELTA, if set
+	int seq;
+	byte[] text, binary;
+	
+	ServerMessage(String line, Frame frame)
+	{
+		this.line = line;
+		this.frame = frame;
+	}
+	
+	byte[] encoding(boolean binaryFormat, boolean deltaFormat)
+	{
+		if (deltaFormat && delta != null)
+			return delta.encoding(binaryFormat, false);
+		
+		if (binaryFormat)
+		{
+			if (binary == null)
+				binary = frame.toBytes();
+			return binary;
+		}
+		
+		if (text == null)
+			text = (line + "\n").getBytes(Connection.CHARSET);
+		return text;
+	}
+	
+	// a state change, numbered so that a reconnecting client knows what it missed
+	private static ServerMessage change(String line, Frame frame, int seq)
+	{
+		ServerMessage message = new ServerMessage(line + " " + seq, frame.writeVarint(seq));
+		message.seq = seq;
+		return message;
+	}
+	
+	static ServerMessage newGame(String[] playerNames, int[] letters, int seq)
+	{
+		StringBuilder output = new StringBuilder();
+		output.append("NEW " + playerNames.length);
+		for (String s : playerNames)
+			output.append(" " + s.replace(' ', '\0'));
+		for (int i : letters)
+			output.append(" " + i);
+		
+		Frame frame = new Frame(Frame.NEW).writeVarint(playerNames.length);
+		for (String s : playerNames)
+			frame.writeText(s);
+		frame.writeLetters(letters);
+		
+		return change(output.toString(), frame, seq);
+	}
+	
+	static ServerMessage flip(int tileIndex, int seq)
+	{
+		return change("FLIP " + tileIndex, new Frame(Frame.FLIP).writeVarint(tileIndex), seq);
+	}
+	
+	static ServerMessage take(ChangeData data, int seq)
+	{
+		Frame frame = new Frame(Frame.TAKE);
+		data.write(frame);
+		ServerMessage message = change("TAKE " + data.toString().replace(' ', '\0'), frame, seq);
+		
+		frame = new Frame(Frame.STEAL);
+		data.writeDelta(frame);
+		message.delta = change("STEAL " + data.toDeltaString().replace(' ', '\0'), frame, seq);
+		return message;
+	}
+	
+	static ServerMessage undo(int index, String word, int seq)
+	{
+		return change("UNDO " + index + " " + word, new Frame(Frame.UNDO).writeVarint(index).writeWord(word), seq);
+	}
+	
+	// binary only, as only binary clients can reconnect
+	static ServerMessage snapshot(Game game, int seq)
+	{
+		Frame frame = new Frame(Frame.SNAPSHOT);
+		game.writeSnapshot(frame);
+		return new ServerMessage(null, frame.writeVarint(seq));
+	}
+	
+	static ServerMessage rejectRequest(int index)
+	{
+		return new ServerMessage("REJECT_REQ " + index, new Frame(Frame.REJECT_REQ).writeVarint(index));
+	}
+	
+	static ServerMessage message(int player, String message)
+	{
+		return new ServerMessage("MESSAGE " + player + " " + message.replace(' ', '\0'),
+			new Frame(Frame.MESSAGE).writeVarint(player).writeText(message));
+	}
+	
+	static ServerMessage show(String message)
+	{
+		return new ServerMessage("SHOW " + message.replace(' ', '\0'), new Frame(Frame.SHOW).writeText(message));
+	}
+	
+	static ServerMessage throttle(int millis)
+	{
+		return new ServerMessage("THROTTLE " + millis, new Frame(Frame.THROTTLE).writeVarint(millis));
+	}
+}
+
+// Single-threaded selector loop that accepts, reads and writes every
+// connection of a server.
+class EventLoop extends Thread
+{
+	final Selector selector;
+	final ServerSocketChannel serverChannel;
+	final ConnectionHandler handler;
+	final ConcurrentLinkedQueue<Connection> pendingWrites, pendingCloses;
+	final HashSet<Connection> connections;
+	volatile boolean running;
+	
+	EventLoop(int port, ConnectionHandler handler) throws IOException
+	{
+		super("EventLoop-" + port);
+		this.handler = handler;
+		selector = Selector.open();
+		serverChannel = ServerSocketChannel.open();
+		serverChannel.socket().setReuseAddress(true);
+		serverChannel.socket().bind(new InetSocketAddress(port));
+		serverChannel.configureBlocking(false);
+		serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+		pendingWrites = new ConcurrentLinkedQueue<Connection>();
+		pendingCloses = new ConcurrentLinkedQueue<Connection>();
+		connections = new HashSet<Connection>();
+		running = true;
+	}
+	
+	void requestWrite(Connection connection)
+	{
+		pendingWrites.add(connection);
+		selector.wakeup();
+	}
+	
+	void requestClose(Connection connection)
+	{
+		pendingCloses.add(connection);
+		selector.wakeup();
+	}
+	
+	void shutdown()
+	{
+		running = false;
+		selector.wakeup();
+		
+		if (!isAlive())
+			closeAll();
+	}
+	
+	public void run()
+	{
+		try
+		{
+			while (running)
+			{
+				selector.select();
+				
+				Connection connection;
+				while ((connection = pendingWrites.poll()) != null)
+					write(connection);
+				while ((connection = pendingCloses.poll()) != null)
+					close(connection);
+				
+				Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+				while (it.hasNext())
+				{
+					SelectionKey key = it.next();
+					it.remove();
+					
+					if (!key.isValid())
+						continue;
+					if (key.isAcceptable())
+						accept();
+					else
+					{
+						connection = (Connection)key.attachment();
+						if (key.isReadable())
+							read(connection);
+						if (key.isValid() && key.isWritable())
+							write(connection);
+					}
+				}
+			}
+		}
+		catch (IOException e)
+		{
+			e.printStackTrace();
+		}
+		finally
+		{
+			closeAll();
+		}
+	}
+	
+	private void accept() throws IOException
+	{
+		SocketChannel channel = serverChannel.accept();
+		if (channel == null)
+			return;
+		
+		channel.configureBlocking(false);
+		channel.socket().setTcpNoDelay(true);
+		Connection connection = new Connection(this, channel);
+		connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+		connections.add(connection);
+		handler.connected(connection);
+	}
+	
+	private void read(Connection connection)
+	{
+		try
+		{
+			if (!connection.read(handler))
+				close(connection);
+		}
+		catch (Exception e)
+		{
+			// a bad message only costs the client that sent it
+			close(connection);
+		}
+	}
+	
+	private void write(Connection connection)
+	{
+		if (connection.closed)
+			return;
+		
+		connection.writeRequested.set(false);
+		try
+		{
+			if (connection.flush())
+				connection.key.interestOps(SelectionKey.OP_READ);
+			else
+				connection.key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+		}
+		catch (IOException e)
+		{
+			close(connection);
+		}
+	}
+	
+	private void close(Connection connection)
+	{
+		if (connection.closed)
+			return;
+		
+		// let anything already queued (e.g. a refusal) go out first
+		try
+		{
+			connection.flush();
+		}
+		catch (IOException e) {}
+		
+		connection.closed = true;
+		connections.remove(connection);
+		connection.key.cancel();
+		try
+		{
+			connection.channel.close();
+		}
+		catch (IOException e) {}
+		
+		handler.disconnected(connection);
+	}
+	
+	private void closeAll()
+	{
+		for (Connection connection : new ArrayList<Connection>(connections))
+			close(connection);
+		
+		try
+		{
+			serverChannel.close();
+			selector.close();
+		}
+		catch (IOException e) {}
+	}
+}
+
+class ActiveGame extends Game
+{
+	int[] charCounts;
+	LetterCounts pileCounts;
+	LinkedList<Integer>[] currentLetters;
+	WordTable words;
+	int[][][] tilePlacements;
+	
+	LinkedList<Integer> randomIndeces;
+	Random random;
+	
+	ActiveGame()
+	{
+		currentLetters = (LinkedList<Integer>[]) new LinkedList[NUM_LETTERS];
+		for (int i = 0; i < NUM_LETTERS; i++)
+			currentLetters[i] = new LinkedList<Integer>();
+		
+		words = new WordTable();
+		
+		randomIndeces = new LinkedList<Integer>();
+	}
+	
+	int[] newGame(int numPlayers, String[] playerNames)
+	{
+		return newGame(numPlayers, playerNames, new Random());
+	}
+	
+	int[] newGame(int numPlayers, String[] playerNames, Random random)
+	{
+		this.random = random;
+		clear(numPlayers);
+		
+		randomIndeces.clear();
+		for (int i = 0; i < NUM_TILES; i++)
+			randomIndeces.add(i);
+		Collections.shuffle(randomIndeces, random);
+		
+		ArrayList<Integer> randomLetters = new ArrayList<Integer>();
+		for (int i = 0; i < NUM_LETTERS; i++)
+			for (int j = 0; j < FREQUENCIES[i]; j++)
+				randomLetters.add(i);
+		Collections.shuffle(randomLetters, random);
+		
+		int[] letters = new int[NUM_TILES];
+		for (int i = 0; i < NUM_TILES; i++)
+			letters[i] = randomLetters.get(i);
+		
+		super.newGame(numPlayers, playerNames, letters);
+		
+		return letters;
+	}
+	
+	// a game dealt with known letters, flipped in a known order
+	void newGame(int numPlayers, String[] playerNames, int[] letters, int[] order)
+	{
+		random = new Random();
+		clear(numPlayers);
+		reorder(order);
+		
+		super.newGame(numPlayers, playerNames, letters);
+	}
+	
+	// the unflipped tiles in a known order, such as a log has for after an undo
+	void reorder(int[] order)
+	{
+		randomIndeces.clear();
+		for (int index : order)
+			randomIndeces.add(index);
+	}
+	
+	private void clear(int numPlayers)
+	{
+		charCounts = new int[NUM_LETTERS];
+		pileCounts = LetterCounts.NONE;
+		for (int i = 0; i < NUM_LETTERS; i++)
+			currentLetters[i].clear();
+		
+		words.clear();
+		words.add(EMPTY);
+		
+		tilePlacements = new int[numPlayers][NUM_TILES / MIN_LENGTH][MAX_LENGTH];
+		for (int i = 0; i < numPlayers; i++)
+			for (int j = 0; j < NUM_TILES / MIN_LENGTH; j++)
+				for (int k = 0; k < MAX_LENGTH; k++)
+					tilePlacements[i][j][k] = -1;
+	}
+	
+	ActiveGame copy()
+	{
+		ActiveGame game = new ActiveGame();
+		game.copyFrom(this);
+		return game;
+	}
+	
+	void copyFrom(ActiveGame other)
+	{
+		super.copyFrom(other);
+		
+		charCounts = other.charCounts.clone();
+		pileCounts = other.pileCounts;
+		for (int i = 0; i < NUM_LETTERS; i++)
+		{
+			currentLetters[i].clear();
+			currentLetters[i].addAll(other.currentLetters[i]);
+		}
+		words.copyFrom(other.words);
+		
+		tilePlacements = new int[numPlayers][][];
+		for (int i = 0; i < numPlayers; i++)
+		{
+			tilePlacements[i] = new int[NUM_TILES / MIN_LENGTH][];
+			for (int j = 0; j < NUM_TILES / MIN_LENGTH; j++)
+				tilePlacements[i][j] = other.tilePlacements[i][j].clone();
+		}
+		
+		randomIndeces.clear();
+		randomIndeces.addAll(other.randomIndeces);
+		random = copy(other.random);
+	}
+	
+	// Random has no copy constructor, but it is serializable
+	private static Random copy(Random random)
+	{
+		try
+		{
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			ObjectOutputStream out = new ObjectOutputStream(bytes);
+			out.writeObject(random);
+			out.close();
+			return (Random)new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray())).readObject();
+		}
+		catch (Exception e)
+		{
+			throw new RuntimeException(e);
+		}
+	}
+	
+	int flipTile()
+	{
+		int index = randomIndeces.removeFirst();
+		int letter = tiles[index].letter;
+		
+		super.flipTile(index);
+		charCounts[letter]++;
+		pileCounts = pileCounts.plus(letter);
+		currentLetters[letter].add(index);
+		
+		return index;
+	}
+	
+	boolean canTake(String newWord)
+	{
+		if (newWord.length() < 3)
+			return false;
+		
+		LetterCounts counts = Dictionary.letterCounts(newWord);
+		for (Word word : words.candidates(counts, pileCounts))
+			if (isStealable(newWord.length(), counts, word))
+				return true;
+				
+		return false;
+	}
+	
+	static boolean overtakes(String word, String newWord)
+	{
+		return Dictionary.letterCounts(newWord).contains(Dictionary.letterCounts(word));
+	}
+	
+	ChangeData steal(String newWord, int player)
+	{
+		if (newWord.length() < 3 || !Dictionary.isWord(newWord))
+			return NO_WORD;
+		
+		LetterCounts counts = Dictionary.letterCounts(newWord);
+		Word toSteal = null;
+		int maxScoreDiff = -1;
+		
+		for (Word word : words.candidates(counts, pileCounts))
+		{
+			if (isStealable(newWord.length(), counts, word))
+			{
+				// checks to see if this steal is better
+				int scoreDiff = word.player == player ? newWord.length() - word.length() : newWord.length();
+				if (scoreDiff > maxScoreDiff)
+				{
+					toSteal = word;
+					maxScoreDiff = scoreDiff;
+				}
+				else if (scoreDiff == maxScoreDiff)
+				{
+					if (toSteal.player >= 0 && 
+						(toSteal.player == player || scores[word.player] > scores[toSteal.player]))
+						{
+							toSteal = word;
+						}
+				}
+			}
+		}
+		
+		if (toSteal == null)
+			return NO_WORD;
+		
+		ChangeData data = new ChangeData();
+		
+		if (toSteal != EMPTY)
+		{
+			data.playerStolen = toSteal.player;
+			data.stolenIndex = words.position(toSteal);
+			words.remove(toSteal);
+			data.stolen = toSteal;
+		}
+		
+		Word taken = new Word(newWord, player);
+		words.add(taken);
+		data.playerTaken = player;
+		data.taken = taken;
+		
+		data.pileTiles = updateCharCount(taken, toSteal);
+		buildMoves(data);
+		
+		for (int[] move : data.tileMoves)
+			if (inWordPanel(move[1], move[2], move[3]))
+				tilePlacements[move[1]][move[2]][move[3]] = -1;
+		for (int[] move : data.tileMoves)
+			if (inWordPanel(move[4], move[5], move[6]))
+				tilePlacements[move[4]][move[5]][move[6]] = move[0];
+		
+		processChange(data);
+
+		return data;
+	}
+	
+	void processChange(ChangeData data)
+	{
+		super.processChange(data);
+		renumber(data);
+	}
+	
+	void undo(ChangeData lastSteal)
+	{
+		words.remove(lastSteal.taken);
+		if (lastSteal.stolen != null)
+			words.add(lastSteal.stolen);
+			
+		for (int[] move : lastSteal.tileMoves)
+			if (inWordPanel(move[4], move[5], move[6]))
+				tilePlacements[move[4]][move[5]][move[6]] = -1;
+		for (int[] move : lastSteal.tileMoves)
+		{
+			if (inWordPanel(move[1], move[2], move[3]))
+				tilePlacements[move[1]][move[2]][move[3]] = move[0];
+			else
+				randomIndeces.add(random.nextInt(randomIndeces.size() + 1), move[0]);
+		}
+		
+		super.undo(lastSteal);
+		renumber(lastSteal);
+	}
+	
+	// only the piles a change touched have words that moved
+	private void renumber(ChangeData data)
+	{
+		words.renumber(wordPiles[data.playerTaken]);
+		if (data.stolen != null && data.playerStolen != data.playerTaken)
+			words.renumber(wordPiles[data.playerStolen]);
+	}
+	
+	// whether a word of this length and these letters can be made from word and the pile
+	boolean isStealable(int length, LetterCounts counts, Word word)
+	{
+		return word.length() < length && counts.contains(word.counts) && pileCounts.containsDifference(counts, word.counts);
+	}
+	
+	// takes the letters of newWord that are not in toSteal from the pile and returns their tiles
+	private int[] updateCharCount(Word newWord, Word toSteal)
+	{
+		LetterCounts used = newWord.counts.minus(toSteal.counts);
+		pileCounts = pileCounts.minus(used);
+		
+		int[] pileTiles = new int[newWord.length() - toSteal.length()];
+		int n = 0;
+		for (int i = 0; i < NUM_LETTERS; i++)
+		{
+			int count = used.count(i);
+			charCounts[i] -= count;
+			for (int j = 0; j < count; j++)
+				pileTiles[n++] = currentLetters[i].removeFirst();
+		}
+		return pileTiles;
+	}
+	
+	int tileAt(int p, int w, int c)
+	{
+		return tilePlacements[p][w][c];
+	}
+	
+	private boolean inWordPanel(int p, int w, int c)
+	{
+		return p >= 0 && p < numPlayers && w >= 0 && w < NUM_TILES / MIN_LENGTH && c >= 0 && c < MAX_LENGTH;
+	}
+}
+
+class Take
+{
+	String word;
+	int player;
+	long time;
+	long received; // System.nanoTime() when the TAKE arrived
+	
+	Take(String word_, int player_, long time_, long received_)
+	{
+		word = word_;
+		player = player_;
+		time = time_;
+		received = received_;
+	}
+	
+	int length()
+	{
+		return word.length();
+	}
+}
+
+class Dictionary
+{
+	static HashMap<String, LetterCounts> dictionary;
+	static ArrayList<String> dictionaryList;
+	static AnagramIndex anagramIndex;
+	
+	// the trie only walks the letters there are, so it is faster with few of
+	// them, and more so when required letters prune it; the bitsets cost
+	// about the same however many letters there are
+	static final int MIN_BITSET_LETTERS = 10;
+	static final int MIN_BITSET_LETTERS_REQUIRED = 20;
+	// and the vector check of every word beats the bitsets past this many
+	static final int MIN_VECTOR_LETTERS = 40;
+	
+	// built on first use, since only queries with many letters need them
+	private static LetterIndex letterIndex;
+	private static LetterColumns letterColumns;
+	private static BatchEvaluator batchEvaluator;
+	
+	static void load()
+	{
+		System.out.println("LOADING DICTIONARY...");
+		
+		try
+		{
+			Scanner input = new Scanner(new File("dictionary_full.txt"));
+			dictionary = new HashMap<String, LetterCounts>();
+			dictionaryList = new ArrayList<String>();
+			while (input.hasNext())
+			{
+				String word = input.next();
+				dictionary.put(word, LetterCounts.of(word));
+				dictionaryList.add(word);
+			}
+			anagramIndex = new AnagramIndex(dictionaryList);
+			letterIndex = null;
+			letterColumns = null;
+			batchEvaluator = null;
+		}
+		catch (IOException e)
+		{
+			System.out.println("DICTIONARY FAILED TO LOAD.");
+			e.printStackTrace();
+		}
+	}
+	
+	static boolean isWord(String word)
+	{
+		return dictionary.containsKey(word);
+	}
+	
+	// shared for dictionary words, so only other words cost an allocation
+	static LetterCounts letterCounts(String word)
+	{
+		LetterCounts counts = (dictionary == null ? null : dictionary.get(word));
+		return (counts != null ? counts : LetterCounts.of(word));
+	}
+	
+	static String getWord(int index)
+	{
+		return dictionaryList.get(index);
+	}
+	
+	static int size()
+	{
+		return dictionary.size();
+	}
+	
+	static String signature(String word)
+	{
+		char[] letters = word.toCharArray();
+		Arrays.sort(letters);
+		return new String(letters);
+	}
+	
+	static ArrayList<String> anagrams(String word)
+	{
+		return anagramIndex.anagrams(signature(word));
+	}
+	
+	// all words that can be spelled with the letters in counts
+	static ArrayList<String> formable(int[] counts)
+	{
+		return formable(counts, null, Game.MIN_LENGTH);
+	}
+	
+	// same as above, but each word must use at least required[i] of each letter i
+	static ArrayList<String> formable(int[] counts, int[] required, int minLength)
+	{
+		// letters a formable word may or may not use, and ones it has to
+		int free = freeLetters(counts, required), fixed = 0;
+		for (int i = 0; required != null && i < Game.NUM_LETTERS; i++)
+			fixed += required[i];
+		if (free < (fixed == 0 ? MIN_BITSET_LETTERS : MIN_BITSET_LETTERS_REQUIRED))
+			return anagramIndex.formable(counts, required, minLength);
+		
+		// in the trie's order, by signature and then ordinal, so that callers
+		// get the same list either way
+		long[] set = formableSet(counts, required, minLength);
+		long[] keys = new long[LetterIndex.count(set)];
+		int n = 0;
+		for (int i = LetterIndex.next(set, 0); i != -1; i = LetterIndex.next(set, i + 1))
+			keys[n++] = (long)anagramIndex.wordSignatures[i] << 32 | i;
+		Arrays.sort(keys);
+		
+		ArrayList<String> output = new ArrayList<String>(keys.length);
+		for (long key : keys)
+			output.add(dictionaryList.get((int)key));
+		return output;
+	}
+	
+	// the ordinals of the same words as a bitset, to walk with LetterIndex.next
+	static long[] formableSet(int[] counts, int[] required, int minLength)
+	{
+		if (freeLetters(counts, required) >= MIN_VECTOR_LETTERS)
+		{
+			BatchEvaluator evaluator = batchEvaluator();
+			if (!(evaluator instanceof ScalarBatchEvaluator))
+				return evaluator.formable(counts, required, minLength);
+		}
+		return letterIndex().formable(counts, required, minLength);
+	}
+	
+	private static int freeLetters(int[] counts, int[] required)
+	{
+		int free = 0;
+		for (int i = 0; i < Game.NUM_LETTERS; i++)
+			free += Math.max(0, counts[i] - (required == null ? 0 : required[i]));
+		return free;
+	}
+	
+	static synchronized LetterIndex letterIndex()
+	{
+		if (letterIndex == null)
+			letterIndex = new LetterIndex(dictionaryList);
+		return letterIndex;
+	}
+	
+	static synchronized LetterColumns letterColumns()
+	{
+		if (letterColumns == null)
+			letterColumns = new LetterColumns(dictionaryList);
+		return letterColumns;
+	}
+	
+	// VectorBatchEvaluator is built separately since it needs the incubating
+	// jdk.incubator.vector module; without it the scalar loop does the work,
+	// which formableSet leaves to the bitsets since they are faster
+	static synchronized BatchEvaluator batchEvaluator()
+	{
+		if (batchEvaluator != null)
+			return batchEvaluator;
+		
+		try
+		{
+			batchEvaluator = (BatchEvaluator)Class.forName("VectorBatchEvaluator").getDeclaredConstructor(LetterColumns.class).newInstance(letterColumns());
+		}
+		catch (java.lang.reflect.InvocationTargetException e)
+		{
+			System.err.println("Could not load VectorBatchEvaluator, using the scalar loop: " + e.getCause());
+		}
+		catch (Exception e)
+		{
+			System.err.println("Could not load VectorBatchEvaluator, using the scalar loop: " + e);
+		}
+		catch (LinkageError e)
+		{
+			System.err.println("Could not load VectorBatchEvaluator, using the scalar loop: " + e);
+		}
+		if (batchEvaluator == null)
+			batchEvaluator = new ScalarBatchEvaluator(letterColumns());
+		return batchEvaluator;
+	}
+}
+
+// The dictionary's letter counts as one byte column per letter, indexed by
+// ordinal, so that a batch check reads each letter of many words at once.
+class LetterColumns
+{
+	final int numWords;
+	final byte[][] columns; // [letter][ordinal]
+	final byte[] lengths;
+	final int[] maxCounts;
+	
+	LetterColumns(ArrayList<String> words)
+	{
+		numWords = words.size();
+		columns = new byte[Game.NUM_LETTERS][numWords];
+		lengths = new byte[numWords];
+		maxCounts = new int[Game.NUM_LETTERS];
+		for (int i = 0; i < numWords; i++)
+		{
+			String word = words.get(i);
+			for (int j = 0; j < word.length(); j++)
+				columns[word.charAt(j) - 'A'][i]++;
+			lengths[i] = (byte)word.length();
+		}
+		for (int j = 0; j < Game.NUM_LETTERS; j++)
+			for (int i = 0; i < numWords; i++)
+				maxCounts[j] = Math.max(maxCounts[j], columns[j][i]);
+	}
+	
+	boolean fits(int ordinal, int[] available, int[] required, int minLength)
+	{
+		if (lengths[ordinal] < minLength)
+			return false;
+		for (int j = 0; j < Game.NUM_LETTERS; j++)
+		{
+			int count = columns[j][ordinal];
+			if (count > available[j] || (required != null && count < required[j]))
+				return false;
+		}
+		return true;
+	}
+}
+
+// Answers the same query as LetterIndex.formable by checking every word.
+interface BatchEvaluator
+{
+	long[] formable(int[] available, int[] required, int minLength);
+}
+
+class ScalarBatchEvaluator implements BatchEvaluator
+{
+	final LetterColumns columns;
+	
+	ScalarBatchEvaluator(LetterColumns columns)
+	{
+		this.columns = columns;
+	}
+	
+	public long[] formable(int[] available, int[] required, int minLength)
+	{
+		long[] output = new long[(columns.numWords + 63) / 64];
+		for (int i = 0; i < columns.numWords; i++)
+			if (columns.fits(i, available, required, minLength))
+				output[i >>> 6] |= 1L << i;
+		return output;
+	}
+}
+
+// Bitsets over the dictionary ordinals: for each letter and count, the words
+// with at least that many of the letter, and for each length, the words at
+// least that long. A formable query is then an AND of the sets for what is
+// required and an AND NOT of the sets for one more than what is available,
+// which is exact, so nothing found needs checking again.
+class LetterIndex
+{
+	final int numWords, numBlocks;
+	final int maxLength;
+	final int[] maxCounts;
+	final long[][][] atLeast; // [letter][count], for counts 1 to maxCounts[letter]
+	final long[][] longEnough; // [length], for lengths 1 to maxLength
+	final long[] all;
+	
+	LetterIndex(ArrayList<String> words)
+	{
+		numWords = words.size();
+		numBlocks = (numWords + 63) / 64;
+		
+		LetterCounts[] counts = new LetterCounts[numWords];
+		maxCounts = new int[Game.NUM_LETTERS];
+		int maxLength = 0;
+		for (int i = 0; i < numWords; i++)
+		{
+			counts[i] = Dictionary.letterCounts(words.get(i));
+			for (int j = 0; j < Game.NUM_LETTERS; j++)
+				maxCounts[j] = Math.max(maxCounts[j], counts[i].count(j));
+			maxLength = Math.max(maxLength, words.get(i).length());
+		}
+		this.maxLength = maxLength;
+		
+		atLeast = new long[Game.NUM_LETTERS][][];
+		for (int j = 0; j < Game.NUM_LETTERS; j++)
+		{
+			atLeast[j] = new long[maxCounts[j] + 1][];
+			for (int k = 1; k <= maxCounts[j]; k++)
+				atLeast[j][k] = new long[numBlocks];
+		}
+		longEnough = new long[maxLength + 1][];
+		for (int n = 1; n <= maxLength; n++)
+			longEnough[n] = new long[numBlocks];
+		all = new long[numBlocks];
+		
+		for (int i = 0; i < numWords; i++)
+		{
+			long bit = 1L << i;
+			for (int j = 0; j < Game.NUM_LETTERS; j++)
+				for (int k = counts[i].count(j); k > 0; k--)
+					atLeast[j][k][i >>> 6] |= bit;
+			for (int n = words.get(i).length(); n > 0; n--)
+				longEnough[n][i >>> 6] |= bit;
+			all[i >>> 6] |= bit;
+		}
+	}
+	
+	// the words with at most counts[i] and (if required is not null) at least
+	// required[i] of each letter i, and at least minLength letters
+	long[] formable(int[] counts, int[] required, int minLength)
+	{
+		long[] output = all.clone();
+		
+		if (minLength > maxLength)
+			return new long[numBlocks];
+		if (minLength > 0)
+			and(output, longEnough[minLength]);
+		
+		for (int j = 0; j < Game.NUM_LETTERS; j++)
+		{
+			if (required != null && required[j] > 0)
+			{
+				if (required[j] > maxCounts[j] || required[j] > counts[j])
+					return new long[numBlocks];
+				and(output, atLeast[j][required[j]]);
+			}
+			if (counts[j] < maxCounts[j])
+				andNot(output, atLeast[j][counts[j] + 1]);
+		}
+		return output;
+	}
+	
+	private static void and(long[] output, long[] set)
+	{
+		for (int b = 0; b < output.length; b++)
+			output[b] &= set[b];
+	}
+	
+	private static void andNot(long[] output, long[] set)
+	{
+		for (int b = 0; b < output.length; b++)
+			output[b] &= ~set[b];
+	}
+	
+	// the first ordinal in set from ordinal on; -1 if there is none
+	static int next(long[] set, int ordinal)
+	{
+		int b = ordinal >>> 6;
+		if (ordinal < 0 || b >= set.length)
+			return -1;
+		
+		long bits = set[b] & (-1L << ordinal);
+		while (bits == 0)
+		{
+			if (++b == set.length)
+				return -1;
+			bits = set[b];
+		}
+		return b * 64 + Long.numberOfTrailingZeros(bits);
+	}
+	
+	static int count(long[] set)
+	{
+		int count = 0;
+		for (long bits : set)
+			count += Long.bitCount(bits);
+		return count;
+	}
+}
+
+class AnagramIndex
+{
+	final String[] signatures;
+	final int[][] signatureWords;
+	final HashMap<String, Integer> signatureIndeces;
+	final int[] wordSignatures; // the index of each word's signature, by ordinal
+	
+	// trie over the sorted signatures, stored as first-child/next-sibling arrays
+	int numNodes;
+	int[] nodeLetters, firstChild, lastChild, nextSibling, nodeSignature;
+	
+	AnagramIndex(ArrayList<String> words)
+	{
+		HashMap<String, ArrayList<Integer>> groups = new HashMap<String, ArrayList<Integer>>();
+		for (int i = 0; i < words.size(); i++)
+		{
+			String signature = Dictionary.signature(words.get(i));
+			ArrayList<Integer> group = groups.get(signature);
+			if (group == null)
+			{
+				group = new ArrayList<Integer>();
+				groups.put(signature, group);
+			}
+			group.add(i);
+		}
+		
+		signatures = groups.keySet().toArray(new String[groups.size()]);
+		Arrays.sort(signatures);
+		signatureWords = new int[signatures.length][];
+		signatureIndeces = new HashMap<String, Integer>();
+		wordSignatures = new int[words.size()];
+		for (int i = 0; i < signatures.length; i++)
+		{
+			ArrayList<Integer> group = groups.get(signatures[i]);
+			signatureWords[i] = new int[group.size()];
+			for (int j = 0; j < group.size(); j++)
+			{
+				signatureWords[i][j] = group.get(j);
+				wordSignatures[group.get(j)] = i;
+			}
+			signatureIndeces.put(signatures[i], i);
+		}
+		
+		buildTrie();
+	}
+	
+	ArrayList<String> anagrams(String signature)
+	{
+		ArrayList<String> output = new ArrayList<String>();
+		Integer index = signatureIndeces.get(signature);
+		if (index != null)
+			for (int ordinal : signatureWords[index])
+				output.add(Dictionary.getWord(ordinal));
+		return output;
+	}
+	
+	ArrayList<String> formable(int[] counts, int[] required, int minLength)
+	{
+		ArrayList<String> output = new ArrayList<String>();
+		int[] remaining = counts.clone();
+		int[] used = new int[Game.NUM_LETTERS];
+		collect(0, 0, 0, remaining, used, required, minLength, output);
+		return output;
+	}
+	
+	private void collect(int node, int depth, int letter, int[] remaining, int[] used, int[] required, int minLength, ArrayList<String> output)
+	{
+		if (nodeSignature[node] != -1 && depth >= minLength && satisfies(used, required, letter, Game.NUM_LETTERS))
+			for (int ordinal : signatureWords[nodeSignature[node]])
+				output.add(Dictionary.getWord(ordinal));
+		
+		for (int child = firstChild[node]; child != -1; child = nextSibling[child])
+		{
+			int c = nodeLetters[child];
+			
+			// letters before c can no longer be added further down this branch
+			if (!satisfies(used, required, letter, c))
+				return;
+			if (remaining[c] == 0)
+				continue;
+			
+			remaining[c]--;
+			used[c]++;
+			collect(child, depth + 1, c, remaining, used, required, minLength, output);
+			remaining[c]++;
+			used[c]--;
+		}
+	}
+	
+	private boolean satisfies(int[] used, int[] required, int from, int to)
+	{
+		if (required != null)
+			for (int i = from; i < to; i++)
+				if (used[i] < required[i])
+					return false;
+		
+		return true;
+	}
+	
+	private void buildTrie()
+	{
+		int capacity = 1 << 16;
+		nodeLetters = new int[capacity];
+		firstChild = new int[capacity];
+		lastChild = new int[capacity];
+		nextSibling = new int[capacity];
+		nodeSignature = new int[capacity];
+		numNodes = 0;
+		newNode(-1);
+		
+		int[] path = new int[Game.MAX_LENGTH + 2];
+		String previous = "";
+		for (int i = 0; i < signatures.length; i++)
+		{
+			String signature = signatures[i];
+			int depth = 0;
+			while (depth < previous.length() && depth < signature.length()
+				&& previous.charAt(depth) == signature.charAt(depth))
+				depth++;
+			
+			for (int j = depth; j < signature.length(); j++)
+			{
+				int parent = path[j];
+				int child = newNode(signature.charAt(j) - 'A');
+				if (firstChild[parent] == -1)
+					firstChild[parent] = child;
+				else
+					nextSibling[lastChild[parent]] = child;
+				lastChild[parent] = child;
+				path[j + 1] = child;
+			}
+			
+			nodeSignature[path[signature.length()]] = i;
+			previous = signature;
+		}
+		
+		nodeLetters = Arrays.copyOf(nodeLetters, numNodes);
+		firstChild = Arrays.copyOf(firstChild, numNodes);
+		nextSibling = Arrays.copyOf(nextSibling, numNodes);
+		nodeSignature = Arrays.copyOf(nodeSignature, numNodes);
+		lastChild = null;
+	}
+	
+	private int newNode(int letter)
+	{
+		if (numNodes == nodeLetters.length)
+		{
+			int capacity = 2 * numNodes;
+			nodeLetters = Arrays.copyOf(nodeLetters, capacity);
+			firstChild = Arrays.copyOf(firstChild, capacity);
+			lastChild = Arrays.copyOf(lastChild, capacity);
+			nextSibling = Arrays.copyOf(nextSibling, capacity);
+			nodeSignature = Arrays.copyOf(nodeSignature, capacity);
+		}
+		
+		nodeLetters[numNodes] = letter;
+		firstChild[numNodes] = lastChild[numNodes] = nextSibling[numNodes] = nodeSignature[numNodes] = -1;
+		return numNodes++;
+	}
+}
+
+// For every dictionary signature, the signatures that can be made from it by
+// adding up to MAX_EXTRA letters, grouped by the number of letters added.
+// Longer steals are left to the anagram index.
+class StealGraph
+{
+	static final String FILE = "steal_graph.bin";
+	static final int MAGIC = 0x53434731;
+	static final int MAX_EXTRA = 3;
+	
+	static StealGraph graph;
+	
+	final int numSignatures;
+	final int[] offsets;
+	final int[] targets;
+	final short[] extras;
+	
+	StealGraph(int numSignatures, int[] offsets, int[] targets)
+	{
+		this.numSignatures = numSignatures;
+		this.offsets = offsets;
+		this.targets = targets;
+		
+		String[] signatures = Dictionary.anagramIndex.signatures;
+		extras = new short[targets.length];
+		for (int s = 0; s < numSignatures; s++)
+			for (int e = offsets[s * MAX_EXTRA]; e < offsets[(s + 1) * MAX_EXTRA]; e++)
+				extras[e] = pack(signatures[s], signatures[targets[e]]);
+	}
+	
+	static void load()
+	{
+		System.out.println("LOADING STEAL GRAPH...");
+		
+		graph = null;
+		try
+		{
+			graph = read(new File(FILE));
+		}
+		catch (IOException e) {}
+		catch (RuntimeException e)
+		{
+			// a corrupt file can decode to bad sizes or targets
+			System.out.println("STEAL GRAPH IS CORRUPT.");
+		}
+		
+		if (graph == null)
+		{
+			System.out.println("BUILDING STEAL GRAPH...");
+			graph = build();
 			
-			while (true)
+			try
 			{
-				try
+				graph.write(new File(FILE));
+			}
+			catch (IOException e_)
+			{
+				System.out.println("STEAL GRAPH FAILED TO SAVE.");
+				e_.printStackTrace();
+			}
+		}
+	}
+	
+	// words that can be made by adding letters from the pile to word; if letter
+	// is not -1, only the ones that use every copy of that letter in the pile
+	static ArrayList<String> steals(String word, int[] pile, int letter)
+	{
+		int[] required = Game.letterCounts(word);
+		int[] available = required.clone();
+		for (int i = 0; i < Game.NUM_LETTERS; i++)
+			available[i] += pile[i];
+		if (letter != -1)
+			required[letter] = available[letter];
+		
+		Integer signature = Dictionary.anagramIndex.signatureIndeces.get(Dictionary.signature(word));
+		if (graph == null || signature == null)
+			return Dictionary.formable(available, required, Math.max(Game.MIN_LENGTH, word.length() + 1));
+		
+		ArrayList<String> output = new ArrayList<String>();
+		graph.neighbors(signature, pile, letter, output);
+		output.addAll(Dictionary.formable(available, required, Math.max(Game.MIN_LENGTH, word.length() + MAX_EXTRA + 1)));
+		return output;
+	}
+	
+	void neighbors(int signature, int[] pile, int letter, ArrayList<String> output)
+	{
+		int pileSize = 0;
+		for (int count : pile)
+			pileSize += count;
+		
+		for (int k = 0; k < MAX_EXTRA && k < pileSize; k++)
+			for (int e = offsets[signature * MAX_EXTRA + k]; e < offsets[signature * MAX_EXTRA + k + 1]; e++)
+				if (fits(extras[e], pile, letter))
+					for (int ordinal : Dictionary.anagramIndex.signatureWords[targets[e]])
+						output.add(Dictionary.getWord(ordinal));
+	}
+	
+	static StealGraph build()
+	{
+		AnagramIndex index = Dictionary.anagramIndex;
+		int n = index.signatures.length;
+		
+		int numEdges = 0;
+		int[] from = new int[1 << 16], to = new int[1 << 16], levels = new int[1 << 16];
+		int[] counts = new int[n * MAX_EXTRA];
+		HashSet<String> subsets = new HashSet<String>();
+		
+		for (int i = 0; i < n; i++)
+		{
+			String signature = index.signatures[i];
+			for (int k = 1; k <= MAX_EXTRA && signature.length() - k >= Game.MIN_LENGTH; k++)
+			{
+				subsets.clear();
+				remove(signature, 0, k, new StringBuilder(), subsets);
+				
+				for (String subset : subsets)
 				{
-					codes = getCodes(player);
+					Integer j = index.signatureIndeces.get(subset);
+					if (j == null)
+						continue;
 					
-					if (codes == null)
-						throw new IOException();
-					
-					if (codes[0].equals("NEW"))
-					{
-						// NEW
-						game.presentPlayers[player] = false;
-						
-						if (game.allGone())
-							newGame(game.numPlayers, game.playerNames);
-						else
-							announce("SHOW " + "New game requested!".replace(' ', '\0'));
-					}
-					else if (codes[0].equals("FLIP"))
-					{
-						// FLIP
-						if (player == game.currentPlayer && !game.randomIndeces.isEmpty())
-						{
-							flipTile();
-							game.presentPlayers[player] = true;
-						}
-					}
-					else if (codes[0].equals("TAKE"))
-					{
-						// TAKE [word]
-						game.presentPlayers[player] = true;
-						takeQueue.add(new Take(codes[1], player, System.currentTimeMillis()));
-						
-						//ChangeData data = game.steal(codes[1], player);
-						//if (data == Game.NO_WORD)
-						//	continue;
-						//
-						//announce("TAKE " + data.toString().replace(' ', '\0'));
-					}
-					else if (codes[0].equals("REJECT"))
+					if (numEdges == from.length)
 					{
-						// REJECT [ChangeData index]
-						int index = Integer.parseInt(codes[1]);
-						
-						if (game.lastSteals.isEmpty() || index >= game.lastSteals.size()
-							|| index < game.lastSteals.size() - 3)
-							{
-								continue;
-							}
-							
-						int neededPlayer = game.lastSteals.get(index).playerTaken;
-						
-						if (neededPlayer == player)
-						{
-							for (int i = index; i < game.lastSteals.size(); i++)
-								rejectionRequested[index] = false;
-							
-							String word = game.lastSteals.get(index).taken.word;
-							game.undoChanges(index);
-							announce("UNDO " + index + " " + word);
-						}
-						else if (!rejectionRequested[index])
-						{
-							rejectionRequested[index] = true;
-							writers.get(neededPlayer).println("REJECT_REQ " + index);
-						}
+						from = Arrays.copyOf(from, 2 * numEdges);
+						to = Arrays.copyOf(to, 2 * numEdges);
+						levels = Arrays.copyOf(levels, 2 * numEdges);
 					}
-					else if (codes[0].equals("MESSAGE"))
+					from[numEdges] = j;
+					to[numEdges] = i;
+					levels[numEdges] = k - 1;
+					numEdges++;
+					counts[j * MAX_EXTRA + k - 1]++;
+				}
+			}
+		}
+		
+		// edges were found in increasing target order, so each list comes out sorted
+		int[] offsets = new int[n * MAX_EXTRA + 1];
+		for (int i = 0; i < n * MAX_EXTRA; i++)
+			offsets[i + 1] = offsets[i] + counts[i];
+		int[] next = Arrays.copyOf(offsets, n * MAX_EXTRA);
+		int[] targets = new int[numEdges];
+		for (int e = 0; e < numEdges; e++)
+			targets[next[from[e] * MAX_EXTRA + levels[e]]++] = to[e];
+		
+		return new StealGraph(n, offsets, targets);
+	}
+	
+	static StealGraph read(File file) throws IOException
+	{
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+		
+		try
+		{
+			if (in.readInt() != MAGIC || in.readInt() != MAX_EXTRA || in.readInt() != Dictionary.size()
+				|| in.readInt() != Dictionary.dictionaryList.hashCode())
+				throw new IOException("stale steal graph");
+			
+			int n = in.readInt();
+			if (n != Dictionary.anagramIndex.signatures.length)
+				throw new IOException("corrupt steal graph");
+			int[] offsets = new int[n * MAX_EXTRA + 1];
+			int[] targets = new int[in.readInt()];
+			
+			int e = 0;
+			for (int i = 0; i < n * MAX_EXTRA; i++)
+			{
+				int count = Frame.readVarint(in);
+				int target = 0;
+				for (int j = 0; j < count; j++)
+				{
+					target += Frame.readVarint(in);
+					if (target < 0 || target >= n)
+						throw new IOException("corrupt steal graph");
+					targets[e++] = target;
+				}
+				offsets[i + 1] = e;
+			}
+			
+			return new StealGraph(n, offsets, targets);
+		}
+		finally
+		{
+			in.close();
+		}
+	}
+	
+	void write(File file) throws IOException
+	{
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+		
+		try
+		{
+			out.writeInt(MAGIC);
+			out.writeInt(MAX_EXTRA);
+			out.writeInt(Dictionary.size());
+			out.writeInt(Dictionary.dictionaryList.hashCode());
+			out.writeInt(numSignatures);
+			out.writeInt(targets.length);
+			
+			// each list is stored as its length followed by the gaps between targets
+			for (int i = 0; i < numSignatures * MAX_EXTRA; i++)
+			{
+				Frame.writeVarint(out, offsets[i + 1] - offsets[i]);
+				int target = 0;
+				for (int e = offsets[i]; e < offsets[i + 1]; e++)
+				{
+					Frame.writeVarint(out, targets[e] - target);
+					target = targets[e];
+				}
+			}
+		}
+		finally
+		{
+			out.close();
+		}
+	}
+	
+	// the letters of superset that are not in subset, as up to three 5-bit fields
+	private static short pack(String subset, String superset)
+	{
+		int packed = 0, j = 0;
+		for (int i = 0; i < superset.length(); i++)
+		{
+			if (j < subset.length() && subset.charAt(j) == superset.charAt(i))
+				j++;
+			else
+				packed = (packed << 5) | (superset.charAt(i) - 'A' + 1);
+		}
+		return (short)packed;
+	}
+	
+	private static boolean fits(short extra, int[] pile, int letter)
+	{
+		int a = extra & 31, b = (extra >> 5) & 31, c = (extra >> 10) & 31;
+		
+		if (letter != -1)
+		{
+			int uses = (a == letter + 1 ? 1 : 0) + (b == letter + 1 ? 1 : 0) + (c == letter + 1 ? 1 : 0);
+			if (uses != pile[letter])
+				return false;
+		}
+		
+		// extra letters are in sorted order, so repeats are adjacent
+		if (a != 0 && pile[a - 1] < (a == b ? (b == c ? 3 : 2) : 1))
+			return false;
+		if (b != 0 && b != a && pile[b - 1] < (b == c ? 2 : 1))
+			return false;
+		if (c != 0 && c != b && pile[c - 1] < 1)
+			return false;
+		
+		return true;
+	}
+	
+	// all ways of removing k letters from a sorted signature
+	private static void remove(String signature, int start, int k, StringBuilder kept, HashSet<String> output)
+	{
+		if (start == signature.length())
+		{
+			if (k == 0)
+				output.add(kept.toString());
+			return;
+		}
+		
+		int end = start;
+		while (end < signature.length() && signature.charAt(end) == signature.charAt(start))
+			end++;
+		
+		for (int removed = 0; removed <= k && removed <= end - start; removed++)
+		{
+			int length = kept.length();
+			kept.append(signature, start, end - removed);
+			remove(signature, end, k - removed, kept, output);
+			kept.setLength(length);
+		}
+	}
+	
+	public static void main(String ... args) throws IOException
+	{
+		Dictionary.load();
+		build().write(new File(FILE));
+	}
+}
+
+// Log-scale histogram of nanosecond timings, with 8 buckets per power of two
+class Histogram
+{
+	static final int SUB_BUCKETS = 8;
+	
+	final AtomicLongArray counts;
+	final AtomicLong total, sum;
+	
+	Histogram()
+	{
+		counts = new AtomicLongArray(64 * SUB_BUCKETS);
+		total = new AtomicLong();
+		sum = new AtomicLong();
+	}
+	
+	void record(long value)
+	{
+		counts.incrementAndGet(bucket(Math.max(1, value)));
+		total.incrementAndGet();
+		sum.addAndGet(value);
+	}
+	
+	long count()
+	{
+		return total.get();
+	}
+	
+	double mean()
+	{
+		long n = total.get();
+		return n == 0 ? 0 : (double)sum.get() / n;
+	}
+	
+	// upper bound of the bucket holding the given fraction of the values
+	long percentile(double fraction)
+	{
+		long n = total.get();
+		if (n == 0)
+			return 0;
+		
+		long rank = (long)Math.ceil(fraction * n), seen = 0;
+		for (int i = 0; i < counts.length(); i++)
+		{
+			seen += counts.get(i);
+			if (seen >= Math.max(1, rank))
+				return upperBound(i);
+		}
+		return upperBound(counts.length() - 1);
+	}
+	
+	String summary()
+	{
+		return "n=" + count() + " mean=" + micros((long)mean()) + " p50=" + micros(percentile(.5))
+			+ " p90=" + micros(percentile(.9)) + " p99=" + micros(percentile(.99)) + " max=" + micros(percentile(1));
+	}
+	
+	private static String micros(long nanos)
+	{
+		return String.format("%.1fus", nanos / 1000.0);
+	}
+	
+	private static int bucket(long value)
+	{
+		int power = 63 - Long.numberOfLeadingZeros(value);
+		if (power < 3)
+			return (int)value;
+		return power * SUB_BUCKETS + (int)((value >> (power - 3)) & (SUB_BUCKETS - 1));
+	}
+	
+	private static long upperBound(int bucket)
+	{
+		int power = bucket / SUB_BUCKETS;
+		if (power < 3)
+			return bucket;
+		return ((long)(SUB_BUCKETS + bucket % SUB_BUCKETS + 1) << (power - 3)) - 1;
+	}
+}
+
+interface Strategy
+{
+	// the word the player tries to take, or null to pass
+	String chooseTake(ActiveGame game, int player, Random random);
+}
+
+class GreedyStrategy implements Strategy
+{
+	public String chooseTake(ActiveGame game, int player, Random random)
+	{
+		String best = null;
+		for (Word word : game.words)
+			for (String newWord : StealGraph.steals(word.word, game.charCounts, -1))
+				if (best == null || newWord.length() > best.length())
+					best = newWord;
+		return best;
+	}
+}
+
+class RandomStrategy implements Strategy
+{
+	public String chooseTake(ActiveGame game, int player, Random random)
+	{
+		ArrayList<String> takes = new ArrayList<String>();
+		for (Word word : game.words)
+			takes.addAll(StealGraph.steals(word.word, game.charCounts, -1));
+		return takes.isEmpty() ? null : takes.get(random.nextInt(takes.size()));
+	}
+}
+
+// mostly submits words that are not in the dictionary or cannot be made
+class SpamStrategy implements Strategy
+{
+	public String chooseTake(ActiveGame game, int player, Random random)
+	{
+		if (random.nextBoolean())
+			return Dictionary.getWord(random.nextInt(Dictionary.size()));
+		
+		StringBuilder word = new StringBuilder();
+		for (int i = 0; i < Game.MIN_LENGTH + random.nextInt(5); i++)
+			word.append((char)('A' + random.nextInt(Game.NUM_LETTERS)));
+		return word.toString();
+	}
+}
+
+// Plays whole games against ActiveGame in-process, with no sockets and no Swing.
+class Simulator
+{
+	static final double UNDO_CHANCE = .02;
+	
+	final Strategy[] strategies;
+	final Random random;
+	
+	Histogram newGameTimes, flipTimes, stealTimes, undoTimes;
+	int numGames, numSteals, numRejected, numUndos;
+	
+	Simulator(Strategy[] strategies, long seed)
+	{
+		this.strategies = strategies;
+		random = new Random(seed);
+		newGameTimes = new Histogram();
+		flipTimes = new Histogram();
+		stealTimes = new Histogram();
+		undoTimes = new Histogram();
+	}
+	
+	void playGame()
+	{
+		int numPlayers = strategies.length;
+		String[] playerNames = new String[numPlayers];
+		for (int i = 0; i < numPlayers; i++)
+			playerNames[i] = "BOT" + i;
+		
+		ActiveGame game = new ActiveGame();
+		long start = System.nanoTime();
+		game.newGame(numPlayers, playerNames, new Random(random.nextLong()));
+		newGameTimes.record(System.nanoTime() - start);
+		
+		while (!game.randomIndeces.isEmpty())
+		{
+			start = System.nanoTime();
+			game.flipTile();
+			flipTimes.record(System.nanoTime() - start);
+			
+			// keep letting players take until nobody wants to
+			boolean taken = true;
+			while (taken)
+			{
+				taken = false;
+				int first = random.nextInt(numPlayers);
+				for (int i = 0; i < numPlayers; i++)
+				{
+					int player = (first + i) % numPlayers;
+					String word = strategies[player].chooseTake(game, player, random);
+					if (word == null)
+						continue;
+					
+					start = System.nanoTime();
+					ChangeData data = game.steal(word, player);
+					stealTimes.record(System.nanoTime() - start);
+					
+					if (data == Game.NO_WORD)
+						numRejected++;
+					else
 					{
-						// MESSAGE [player index] [message]
-						announce("MESSAGE " + codes[1] + " " + codes[2]);
+						numSteals++;
+						taken = true;
 					}
 				}
-				catch (IOException e)
+			}
+			
+			if (!game.lastSteals.isEmpty() && random.nextDouble() < UNDO_CHANCE)
+			{
+				start = System.nanoTime();
+				game.undoChanges(game.lastSteals.size() - 1);
+				undoTimes.record(System.nanoTime() - start);
+				numUndos++;
+			}
+		}
+		
+		numGames++;
+	}
+	
+	static Strategy strategy(String name)
+	{
+		if (name.equals("greedy"))
+			return new GreedyStrategy();
+		if (name.equals("random"))
+			return new RandomStrategy();
+		if (name.equals("spam"))
+			return new SpamStrategy();
+		throw new IllegalArgumentException("unknown strategy " + name);
+	}
+	
+	// java Simulator [games] [strategy] [strategy] ...
+	public static void main(String ... args)
+	{
+		int games = args.length > 0 ? Integer.parseInt(args[0]) : 100;
+		Strategy[] strategies = new Strategy[Math.max(1, args.length - 1)];
+		strategies[0] = new GreedyStrategy();
+		for (int i = 1; i < args.length; i++)
+			strategies[i - 1] = strategy(args[i]);
+		
+		Dictionary.load();
+		StealGraph.load();
+		// built on first use, so outside the timing
+		Dictionary.letterIndex();
+		Dictionary.batchEvaluator();
+		
+		Simulator simulator = new Simulator(strategies, 0);
+		long start = System.nanoTime();
+		for (int i = 0; i < games; i++)
+			simulator.playGame();
+		double seconds = (System.nanoTime() - start) / 1e9;
+		
+		System.out.println(String.format("%d games in %.2fs: %.2f games/sec, %.1f steals/sec (%d steals, %d rejected, %d undos)",
+			simulator.numGames, seconds, simulator.numGames / seconds, simulator.numSteals / seconds,
+			simulator.numSteals, simulator.numRejected, simulator.numUndos));
+		System.out.println("newGame " + simulator.newGameTimes.summary());
+		System.out.println("flipTile " + simulator.flipTimes.summary());
+		System.out.println("steal " + simulator.stealTimes.summary());
+		System.out.println("undoChanges " + simulator.undoTimes.summary());
+	}
+}
+
+// Microbenchmarks for the engine hot paths. Fixtures are built from fixed
+// seeds, so runs on different commits measure the same work.
+// java EngineBenchmark [benchmark name filter]
+class EngineBenchmark
+{
+	static final int NUM_FIXTURES = 8;
+	static final int MIN_WORDS = 20;
+	static final int MAX_WORDS = 30;
+	static final int OPS = 20000;
+	static final int STEAL_OPS = 2000;
+	static final int FORMABLE_OPS = 500;
+	static final int CHECK_QUERIES = 200;
+	static final int WARMUP_ITERATIONS = 5;
+	static final int ITERATIONS = 10;
+	
+	static volatile int sink;
+	
+	ActiveGame[] fixtures;
+	ComputerGame[] computerFixtures;
+	String[][] takes, queries;
+	LetterCounts[][] queryCounts;
+	Word[][] tableWords;
+	ChangeData[] changes;
+	String[] encodedChanges;
+	
+	EngineBenchmark()
+	{
+		fixtures = new ActiveGame[NUM_FIXTURES];
+		computerFixtures = new ComputerGame[NUM_FIXTURES];
+		takes = new String[NUM_FIXTURES][];
+		queries = new String[NUM_FIXTURES][];
+		queryCounts = new LetterCounts[NUM_FIXTURES][];
+		tableWords = new Word[NUM_FIXTURES][];
+		
+		ArrayList<ChangeData> allChanges = new ArrayList<ChangeData>();
+		long seed = 1;
+		for (int i = 0; i < NUM_FIXTURES; i++)
+		{
+			while (!buildFixture(i, seed++)) {}
+			allChanges.addAll(fixtures[i].lastSteals);
+		}
+		
+		changes = allChanges.toArray(new ChangeData[allChanges.size()]);
+		encodedChanges = new String[changes.length];
+		for (int i = 0; i < changes.length; i++)
+			encodedChanges[i] = changes[i].toString();
+	}
+	
+	// plays the shortest legal word until MIN_WORDS to MAX_WORDS words are on the
+	// table with tiles left to flip, mirroring the game in a ComputerGame
+	private boolean buildFixture(int f, long seed)
+	{
+		Random random = new Random(seed);
+		String[] playerNames = {"A", "B", "C"};
+		ActiveGame game = new ActiveGame();
+		ComputerGame computerGame = new ComputerGame();
+		computerGame.newGame(3, playerNames, game.newGame(3, playerNames, random));
+		int target = MIN_WORDS + random.nextInt(MAX_WORDS - MIN_WORDS + 1);
+		
+		while (game.words.size() - 1 < target)
+		{
+			if (game.randomIndeces.size() <= 10)
+				return false;
+			computerGame.flipTile(game.flipTile());
+			
+			String shortest = null;
+			for (Word word : game.words)
+				for (String newWord : StealGraph.steals(word.word, game.charCounts, -1))
+					if (shortest == null || newWord.length() < shortest.length())
+						shortest = newWord;
+			
+			if (shortest != null && random.nextInt(3) > 0)
+				computerGame.processChange(ChangeData.parse(game.steal(shortest, random.nextInt(3)).toString()));
+		}
+		
+		// leave some letters face up in the pile
+		for (int i = 0; i < 6; i++)
+			computerGame.flipTile(game.flipTile());
+		
+		ArrayList<String> legal = new ArrayList<String>();
+		for (Word word : game.words)
+			legal.addAll(StealGraph.steals(word.word, game.charCounts, -1));
+		if (legal.isEmpty())
+			return false;
+		
+		fixtures[f] = game;
+		computerFixtures[f] = computerGame;
+		tableWords[f] = game.words.toArray();
+		takes[f] = new String[64];
+		queries[f] = new String[64];
+		queryCounts[f] = new LetterCounts[64];
+		for (int i = 0; i < 64; i++)
+		{
+			takes[f][i] = legal.get(random.nextInt(legal.size()));
+			queries[f][i] = i % 2 == 0 ? takes[f][i] : Dictionary.getWord(random.nextInt(Dictionary.size()));
+			queryCounts[f][i] = Dictionary.letterCounts(queries[f][i]);
+		}
+		return true;
+	}
+	
+	Case batchCase(final BatchEvaluator evaluator)
+	{
+		return new Case(evaluator.getClass().getName() + ".formable")
+		{
+			int ops()
+			{
+				return FORMABLE_OPS;
+			}
+			
+			int run(int i)
+			{
+				int[][] query = formableQuery(i);
+				return LetterIndex.count(evaluator.formable(query[0], query[1], query[2][0]));
+			}
+		};
+	}
+	
+	// {available, required, {min length}} for stealing a table word with the pile
+	int[][] formableQuery(int i)
+	{
+		int f = i % NUM_FIXTURES;
+		Word word = tableWords[f][(i / NUM_FIXTURES) % tableWords[f].length];
+		int[] required = word.counts.toArray();
+		int[] available = word.counts.plus(fixtures[f].pileCounts).toArray();
+		return new int[][] {available, required, {Math.max(Game.MIN_LENGTH, word.length() + 1)}};
+	}
+	
+	// compares every way of answering a formable query with checking each word,
+	// over piles of 0 to 60 letters; returns the number of queries that differ
+	int checkFormable(int numQueries)
+	{
+		Random random = new Random(1);
+		HashMap<String, Integer> ordinals = new HashMap<String, Integer>();
+		for (int i = 0; i < Dictionary.size(); i++)
+			ordinals.put(Dictionary.getWord(i), i);
+		
+		int mismatches = 0;
+		for (int q = 0; q < numQueries; q++)
+		{
+			ArrayList<Integer> bag = new ArrayList<Integer>();
+			for (int i = 0; i < Game.NUM_LETTERS; i++)
+				for (int j = 0; j < Game.FREQUENCIES[i]; j++)
+					bag.add(i);
+			Collections.shuffle(bag, random);
+			
+			int[] available = new int[Game.NUM_LETTERS];
+			for (int i = random.nextInt(61); i > 0; i--)
+				available[bag.get(i)]++;
+			int[] required = null;
+			int minLength = Game.MIN_LENGTH + random.nextInt(3);
+			if (q % 2 == 1)
+			{
+				String word = Dictionary.getWord(random.nextInt(Dictionary.size()));
+				required = Game.letterCounts(word);
+				for (int i = 0; i < Game.NUM_LETTERS; i++)
+					available[i] += required[i];
+				minLength = word.length() + 1 + random.nextInt(StealGraph.MAX_EXTRA + 1);
+			}
+			
+			long[] expected = new long[(Dictionary.size() + 63) / 64];
+			for (int i = 0; i < Dictionary.size(); i++)
+			{
+				String word = Dictionary.getWord(i);
+				LetterCounts counts = Dictionary.letterCounts(word);
+				boolean fits = word.length() >= minLength;
+				for (int j = 0; j < Game.NUM_LETTERS && fits; j++)
+					fits = counts.count(j) <= available[j] && (required == null || counts.count(j) >= required[j]);
+				if (fits)
+					expected[i >>> 6] |= 1L << i;
+			}
+			
+			// the words also have to come in the trie's order
+			ArrayList<String> words = Dictionary.anagramIndex.formable(available, required, minLength);
+			if (!words.equals(Dictionary.formable(available, required, minLength)))
+			{
+				mismatches++;
+				continue;
+			}
+			
+			ArrayList<long[]> answers = new ArrayList<long[]>();
+			answers.add(toSet(words, ordinals));
+			answers.add(Dictionary.formableSet(available, required, minLength));
+			answers.add(Dictionary.letterIndex().formable(available, required, minLength));
+			answers.add(new ScalarBatchEvaluator(Dictionary.letterColumns()).formable(available, required, minLength));
+			if (!(Dictionary.batchEvaluator() instanceof ScalarBatchEvaluator))
+				answers.add(Dictionary.batchEvaluator().formable(available, required, minLength));
+			
+			long[] fits = new long[expected.length];
+			for (int i = 0; i < Dictionary.size(); i++)
+				if (Dictionary.letterColumns().fits(i, available, required, minLength))
+					fits[i >>> 6] |= 1L << i;
+			answers.add(fits);
+			for (long[] answer : answers)
+				if (!Arrays.equals(answer, expected))
 				{
-					game.presentPlayers[player] = false;
-					if (game.allGone())
-					{
-						try
-						{
-							close();
-						}
-						catch (IOException e_)
-						{
-							JOptionPane.showMessageDialog(null, "Error.");
-						}
-					}
-					return;
+					mismatches++;
+					break;
 				}
+		}
+		return mismatches;
+	}
+	
+	private static long[] toSet(java.util.List<String> words, HashMap<String, Integer> ordinals)
+	{
+		long[] set = new long[(Dictionary.size() + 63) / 64];
+		for (String word : words)
+		{
+			int i = ordinals.get(word);
+			set[i >>> 6] |= 1L << i;
+		}
+		return set;
+	}
+	
+	abstract class Case
+	{
+		final String name;
+		
+		Case(String name)
+		{
+			this.name = name;
+		}
+		
+		int ops()
+		{
+			return OPS;
+		}
+		
+		// called before each timed batch, outside the measurement
+		void setup() {}
+		
+		abstract int run(int i);
+	}
+	
+	ArrayList<Case> cases()
+	{
+		ArrayList<Case> cases = new ArrayList<Case>();
+		
+		cases.add(new Case("ActiveGame.isStealable")
+		{
+			int run(int i)
+			{
+				int f = i % NUM_FIXTURES;
+				Word[] words = tableWords[f];
+				int q = (i / NUM_FIXTURES) & 63;
+				return fixtures[f].isStealable(queries[f][q].length(), queryCounts[f][q], words[i % words.length]) ? 1 : 0;
+			}
+		});
+		cases.add(new Case("ActiveGame.canTake")
+		{
+			int run(int i)
+			{
+				int f = i % NUM_FIXTURES;
+				return fixtures[f].canTake(queries[f][(i / NUM_FIXTURES) & 63]) ? 1 : 0;
+			}
+		});
+		cases.add(new Case("ActiveGame.steal")
+		{
+			ActiveGame[] copies = new ActiveGame[STEAL_OPS];
+			
+			int ops()
+			{
+				return STEAL_OPS;
+			}
+			
+			void setup()
+			{
+				for (int i = 0; i < STEAL_OPS; i++)
+					copies[i] = fixtures[i % NUM_FIXTURES].copy();
+			}
+			
+			int run(int i)
+			{
+				int f = i % NUM_FIXTURES;
+				ChangeData data = copies[i].steal(takes[f][(i / NUM_FIXTURES) & 63], i % 3);
+				copies[i] = null;
+				return data.tileMoves.size();
+			}
+		});
+		cases.add(new Case("ActiveGame.overtakes")
+		{
+			int run(int i)
+			{
+				int f = i % NUM_FIXTURES;
+				Word[] words = tableWords[f];
+				return ActiveGame.overtakes(words[i % words.length].word, takes[f][(i / NUM_FIXTURES) & 63]) ? 1 : 0;
+			}
+		});
+		cases.add(new Case("ComputerGame.canTake")
+		{
+			int run(int i)
+			{
+				int f = i % NUM_FIXTURES;
+				return computerFixtures[f].canTake(queries[f][(i / NUM_FIXTURES) & 63]) ? 1 : 0;
+			}
+		});
+		cases.add(new Case("AnagramIndex.formable")
+		{
+			int ops()
+			{
+				return FORMABLE_OPS;
+			}
+			
+			int run(int i)
+			{
+				int[][] query = formableQuery(i);
+				return Dictionary.anagramIndex.formable(query[0], query[1], query[2][0]).size();
 			}
+		});
+		cases.add(new Case("LetterIndex.formable")
+		{
+			int ops()
+			{
+				return FORMABLE_OPS;
+			}
+			
+			int run(int i)
+			{
+				int[][] query = formableQuery(i);
+				return LetterIndex.count(Dictionary.formableSet(query[0], query[1], query[2][0]));
+			}
+		});
+		cases.add(batchCase(new ScalarBatchEvaluator(Dictionary.letterColumns())));
+		if (!(Dictionary.batchEvaluator() instanceof ScalarBatchEvaluator))
+			cases.add(batchCase(Dictionary.batchEvaluator()));
+		cases.add(new Case("Dictionary.isWord")
+		{
+			int run(int i)
+			{
+				int f = i % NUM_FIXTURES;
+				return Dictionary.isWord(queries[f][(i / NUM_FIXTURES) & 63]) ? 1 : 0;
+			}
+		});
+		cases.add(new Case("ChangeData.toString")
+		{
+			int run(int i)
+			{
+				return changes[i % changes.length].toString().length();
+			}
+		});
+		cases.add(new Case("ChangeData.parse")
+		{
+			int run(int i)
+			{
+				return ChangeData.parse(encodedChanges[i % encodedChanges.length]).tileMoves.size();
+			}
+		});
+		
+		return cases;
+	}
+	
+	// returns {ns/op, standard deviation, bytes/op}
+	double[] measure(Case c)
+	{
+		java.lang.management.ThreadMXBean bean = java.lang.management.ManagementFactory.getThreadMXBean();
+		com.sun.management.ThreadMXBean allocations = bean instanceof com.sun.management.ThreadMXBean ? (com.sun.management.ThreadMXBean)bean : null;
+		long thread = Thread.currentThread().getId();
+		
+		int ops = c.ops();
+		double[] times = new double[ITERATIONS];
+		long allocated = 0;
+		for (int iteration = -WARMUP_ITERATIONS; iteration < ITERATIONS; iteration++)
+		{
+			c.setup();
+			long bytes = allocations == null ? 0 : allocations.getThreadAllocatedBytes(thread);
+			long start = System.nanoTime();
+			int result = 0;
+			for (int i = 0; i < ops; i++)
+				result += c.run(i);
+			long time = System.nanoTime() - start;
+			if (allocations != null)
+				bytes = allocations.getThreadAllocatedBytes(thread) - bytes;
+			sink += result;
+			
+			if (iteration >= 0)
+			{
+				times[iteration] = (double)time / ops;
+				allocated += bytes;
+			}
+		}
+		
+		double mean = 0, variance = 0;
+		for (double time : times)
+			mean += time / ITERATIONS;
+		for (double time : times)
+			variance += (time - mean) * (time - mean) / ITERATIONS;
+		return new double[] {mean, Math.sqrt(variance), allocations == null ? -1 : (double)allocated / (ITERATIONS * ops)};
+	}
+	
+	public static void main(String ... args)
+	{
+		Dictionary.load();
+		StealGraph.load();
+		
+		EngineBenchmark benchmark = new EngineBenchmark();
+		int mismatches = benchmark.checkFormable(CHECK_QUERIES);
+		System.out.println("formable: " + CHECK_QUERIES + " random queries, " + mismatches + " answered wrong");
+		if (mismatches > 0)
+			System.exit(1);
+		
+		System.out.println(String.format("%-24s %12s %10s %10s", "Benchmark", "ns/op", "error", "B/op"));
+		for (Case c : benchmark.cases())
+		{
+			if (args.length > 0 && !c.name.contains(args[0]))
+				continue;
+			
+			double[] result = benchmark.measure(c);
+			System.out.println(String.format("%-24s %12.1f %10.1f %10.1f", c.name, result[0], result[1], result[2]));
 		}
 	}
 }
 
-class ActiveGame extends Game
+// Hundreds of synthetic players on one selector thread, for capacity testing a
+// running server. Each seeded client joins a room over the binary protocol and
+// sends TAKEs (some of them made-up words), FLIPs on its turn, MESSAGEs and
+// REJECTs at the configured rates. MESSAGEs carry their send time, so their
+// echo measures broadcast latency; a client's own steals coming back measure
+// take latency.
+class LoadGenerator
 {
-	int[] charCounts;
-	LinkedList<Integer>[] currentLetters;
-	LinkedList<Word> words;
-	int[][][] tilePlacements;
+	static final int PLAYERS_PER_ROOM = 3;
+	static final int SELECT_TIME = 5; // in milliseconds
 	
-	LinkedList<Integer> randomIndeces;
+	final Selector selector;
+	final ArrayList<LoadClient> clients;
+	final Histogram echoLatency, takeLatency;
+	long sent, received, refused;
 	
-	ActiveGame()
+	double takeRate, messageRate, rejectRate; // per client per second
+	double invalidFraction; // of takes that are not words
+	int flipDelay; // in milliseconds
+	
+	LoadGenerator() throws IOException
 	{
-		currentLetters = (LinkedList<Integer>[]) new LinkedList[NUM_LETTERS];
-		for (int i = 0; i < NUM_LETTERS; i++)
-			currentLetters[i] = new LinkedList<Integer>();
-			
-		words = new LinkedList<Word>();
+		selector = Selector.open();
+		clients = new ArrayList<LoadClient>();
+		echoLatency = new Histogram();
+		takeLatency = new Histogram();
 		
-		randomIndeces = new LinkedList<Integer>();
+		takeRate = 1;
+		messageRate = 0.5;
+		rejectRate = 0.05;
+		invalidFraction = 0.2;
+		flipDelay = 500;
 	}
 	
-	int[] newGame(int numPlayers, String[] playerNames)
+	// opens numClients connections, PLAYERS_PER_ROOM to a room
+	void connect(int port, int numClients) throws IOException
 	{
-		charCounts = new int[NUM_LETTERS];
-		for (int i = 0; i < NUM_LETTERS; i++)
-			currentLetters[i].clear();
+		String run = Long.toString(System.currentTimeMillis(), 36);
+		ComputerGame game = null;
+		for (int i = 0; i < numClients; i++)
+		{
+			if (i % PLAYERS_PER_ROOM == 0)
+				game = new ComputerGame();
+			
+			SocketChannel channel = SocketChannel.open();
+			channel.configureBlocking(false);
+			channel.socket().setTcpNoDelay(true);
+			boolean connected = channel.connect(new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+			
+			LoadClient client = new LoadClient(this, channel, "load-" + run + "-" + i / PLAYERS_PER_ROOM, game,
+				i % PLAYERS_PER_ROOM == 0, new Random(i));
+			client.key = channel.register(selector, SelectionKey.OP_CONNECT, client);
+			clients.add(client);
+			if (connected)
+				client.connected();
+		}
+	}
+	
+	// drives every client for the given time, reporting once a second
+	void run(long millis) throws IOException
+	{
+		long start = System.currentTimeMillis(), nextReport = start + 1000;
+		long lastSent = 0, lastReceived = 0;
 		
-		words.clear();
-		words.add(EMPTY);
+		while (System.currentTimeMillis() < start + millis)
+		{
+			selector.select(SELECT_TIME);
+			
+			Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+			while (it.hasNext())
+			{
+				SelectionKey key = it.next();
+				it.remove();
+				((LoadClient)key.attachment()).ready();
+			}
+			
+			long now = System.currentTimeMillis();
+			for (LoadClient client : clients)
+				client.act(now);
+			
+			if (now >= nextReport)
+			{
+				System.out.println((now - start) / 1000 + "s: " + numPlaying() + " playing, " + (sent - lastSent)
+					+ " sent/s, " + (received - lastReceived) + " received/s");
+				lastSent = sent;
+				lastReceived = received;
+				nextReport += 1000;
+			}
+		}
 		
-		tilePlacements = new int[numPlayers][NUM_TILES / MIN_LENGTH][MAX_LENGTH];
-		for (int i = 0; i < numPlayers; i++)
-			for (int j = 0; j < NUM_TILES / MIN_LENGTH; j++)
-				for (int k = 0; k < MAX_LENGTH; k++)
-					tilePlacements[i][j][k] = -1;
+		long seconds = Math.max(1, millis / 1000);
+		System.out.println("throughput: " + sent / seconds + " sent/s, " + received / seconds + " received/s, "
+			+ refused + " refused");
+		System.out.println("broadcast latency: " + echoLatency.summary());
+		System.out.println("take latency: " + takeLatency.summary());
+	}
+	
+	int numPlaying()
+	{
+		int n = 0;
+		for (LoadClient client : clients)
+			if (client.welcomed && !client.closed)
+				n++;
+		return n;
+	}
+	
+	void close()
+	{
+		for (LoadClient client : clients)
+			client.close();
+		try
+		{
+			selector.close();
+		}
+		catch (IOException e) {}
+	}
+	
+	// LoadGenerator [clients] [seconds] [port] [takes/s] [messages/s] [rejects/s] [invalid fraction] [flip delay ms]
+	public static void main(String ... args) throws IOException
+	{
+		Dictionary.load();
+		StealGraph.load();
+		
+		int numClients = (args.length > 0 ? Integer.parseInt(args[0]) : 300);
+		int seconds = (args.length > 1 ? Integer.parseInt(args[1]) : 30);
+		int port = (args.length > 2 ? Integer.parseInt(args[2]) : MainScreen.PORT);
+		
+		LoadGenerator generator = new LoadGenerator();
+		if (args.length > 3)
+			generator.takeRate = Double.parseDouble(args[3]);
+		if (args.length > 4)
+			generator.messageRate = Double.parseDouble(args[4]);
+		if (args.length > 5)
+			generator.rejectRate = Double.parseDouble(args[5]);
+		if (args.length > 6)
+			generator.invalidFraction = Double.parseDouble(args[6]);
+		if (args.length > 7)
+			generator.flipDelay = Integer.parseInt(args[7]);
+		
+		generator.connect(port, numClients);
+		generator.run(1000L * seconds);
+		generator.close();
+	}
+}
+
+// One synthetic player of a LoadGenerator. The first client of each room keeps
+// the room's game up to date for all of them.
+class LoadClient
+{
+	final LoadGenerator generator;
+	final SocketChannel channel;
+	SelectionKey key;
+	ByteBuffer in, out;
+	final String room;
+	final ComputerGame game;
+	final boolean tracking;
+	final Random random;
+	
+	int playerIndex, numFlips;
+	boolean welcomed, closed, newGameRequested;
+	long nextTake, nextMessage, nextReject, nextFlip;
+	final HashMap<String, Long> pendingTakes; // word, System.nanoTime() when sent
+	
+	LoadClient(LoadGenerator generator, SocketChannel channel, String room, ComputerGame game, boolean tracking,
+		Random random)
+	{
+		this.generator = generator;
+		this.channel = channel;
+		this.room = room;
+		this.game = game;
+		this.tracking = tracking;
+		this.random = random;
+		in = ByteBuffer.allocate(Connection.BUFFER_SIZE);
+		out = ByteBuffer.allocate(Connection.BUFFER_SIZE);
+		pendingTakes = new HashMap<String, Long>();
+	}
+	
+	void ready()
+	{
+		try
+		{
+			if (key.isConnectable() && channel.finishConnect())
+				connected();
+			if (key.isValid() && key.isReadable())
+				read();
+			if (key.isValid() && key.isWritable())
+				flush();
+		}
+		catch (IOException e)
+		{
+			close();
+		}
+	}
+	
+	void connected()
+	{
+		key.interestOps(SelectionKey.OP_READ);
+		send(("NEW_CLIENT load " + room + " " + LoadGenerator.PLAYERS_PER_ROOM + " " + Frame.BINARY
+			+ " " + Frame.DELTA + "\n").getBytes(Connection.CHARSET));
+	}
+	
+	private void read() throws IOException
+	{
+		if (channel.read(in) == -1)
+		{
+			close();
+			return;
+		}
 		
-		randomIndeces.clear();
-		for (int i = 0; i < NUM_TILES; i++)
-			randomIndeces.add(i);
-		Collections.shuffle(randomIndeces);
+		in.flip();
+		while (true)
+		{
+			in.mark();
+			if (!welcomed)
+			{
+				String line = readLine();
+				if (line == null)
+					break;
+				
+				// WELCOME [player index] [reconnect token] [capability] ...
+				String[] codes = line.split(" ");
+				if (!codes[0].equals("WELCOME") || !line.contains(Frame.BINARY))
+				{
+					generator.refused++;
+					close();
+					return;
+				}
+				playerIndex = Integer.parseInt(codes[1]);
+				welcomed = true;
+				continue;
+			}
+			
+			byte[] data = readFrame();
+			if (data == null)
+				break;
+			generator.received++;
+			receive(new Frame(data));
+		}
+		in.compact();
 		
-		ArrayList<Integer> randomLetters = new ArrayList<Integer>();
-		for (int i = 0; i < NUM_LETTERS; i++)
-			for (int j = 0; j < FREQUENCIES[i]; j++)
-				randomLetters.add(i);
-		Collections.shuffle(randomLetters);
+		if (!in.hasRemaining())
+		{
+			ByteBuffer larger = ByteBuffer.allocate(2 * in.capacity());
+			in.flip();
+			larger.put(in);
+			in = larger;
+		}
+	}
+	
+	private String readLine()
+	{
+		for (int i = in.position(); i < in.limit(); i++)
+			if (in.get(i) == '\n')
+			{
+				byte[] bytes = new byte[i - in.position()];
+				in.get(bytes);
+				in.get();
+				return new String(bytes, Connection.CHARSET).trim();
+			}
+		return null;
+	}
+	
+	private byte[] readFrame()
+	{
+		int length = 0;
+		for (int shift = 0; ; shift += 7)
+		{
+			if (!in.hasRemaining())
+			{
+				in.reset();
+				return null;
+			}
+			int b = in.get() & 0xFF;
+			length |= (b & 0x7F) << shift;
+			if ((b & 0x80) == 0)
+				break;
+		}
+		if (in.remaining() < length)
+		{
+			in.reset();
+			return null;
+		}
 		
-		int[] letters = new int[NUM_TILES];
-		for (int i = 0; i < NUM_TILES; i++)
-			letters[i] = randomLetters.get(i);
+		byte[] data = new byte[length];
+		in.get(data);
+		return data;
+	}
+	
+	private void receive(Frame frame) throws IOException
+	{
+		byte type = frame.type();
+		if (type == Frame.NEW)
+		{
+			int numPlayers = frame.readVarint();
+			String[] playerNames = new String[numPlayers];
+			for (int i = 0; i < numPlayers; i++)
+				playerNames[i] = frame.readText();
+			if (tracking)
+				game.newGame(numPlayers, playerNames, frame.readLetters(Game.NUM_TILES));
+			
+			numFlips = 0;
+			newGameRequested = false;
+			pendingTakes.clear();
+			long now = System.currentTimeMillis();
+			nextTake = now + next(generator.takeRate);
+			nextMessage = now + next(generator.messageRate);
+			nextReject = now + next(generator.rejectRate);
+			nextFlip = now + generator.flipDelay;
+		}
+		else if (type == Frame.FLIP)
+		{
+			if (tracking)
+				game.flipTile(frame.readVarint());
+			numFlips++;
+			nextFlip = System.currentTimeMillis() + generator.flipDelay;
+		}
+		else if (type == Frame.STEAL || type == Frame.TAKE)
+		{
+			ChangeData data = (type == Frame.STEAL ? ChangeData.readDelta(frame) : ChangeData.read(frame));
+			if (tracking)
+			{
+				if (type == Frame.STEAL)
+					game.buildMoves(data);
+				game.processChange(data);
+			}
+			
+			Long sentTime = pendingTakes.remove(data.taken.word);
+			if (data.playerTaken == playerIndex && sentTime != null)
+				generator.takeLatency.record(System.nanoTime() - sentTime);
+		}
+		else if (type == Frame.UNDO)
+		{
+			if (tracking)
+				game.undoChanges(frame.readVarint());
+		}
+		else if (type == Frame.MESSAGE)
+		{
+			// this client's own messages are its send time
+			int player = frame.readVarint();
+			String text = frame.readText();
+			if (player == playerIndex && text.startsWith("t"))
+				generator.echoLatency.record(System.nanoTime() - Long.parseLong(text.substring(1)));
+		}
+	}
+	
+	// exponentially distributed wait for an event at the given rate per second
+	private long next(double rate)
+	{
+		return (rate <= 0 ? Long.MAX_VALUE / 2 : (long)(-Math.log(1 - random.nextDouble()) * 1000 / rate));
+	}
+	
+	void act(long now)
+	{
+		if (!welcomed || closed || !game.started)
+			return;
 		
-		super.newGame(numPlayers, playerNames, letters);
+		if (now >= nextTake)
+		{
+			String word;
+			ArrayList<String> takes = game.legalTakes();
+			if (takes.isEmpty() || random.nextDouble() < generator.invalidFraction)
+			{
+				// almost never a word
+				char[] letters = new char[3 + random.nextInt(6)];
+				for (int i = 0; i < letters.length; i++)
+					letters[i] = (char)('A' + random.nextInt(Game.NUM_LETTERS));
+				word = new String(letters);
+			}
+			else
+				word = takes.get(random.nextInt(takes.size()));
+			
+			pendingTakes.put(word, System.nanoTime());
+			send(new Frame(Frame.TAKE).writeWord(word));
+			nextTake = now + next(generator.takeRate);
+		}
+		if (now >= nextMessage)
+		{
+			send(new Frame(Frame.MESSAGE).writeVarint(playerIndex).writeText("t" + System.nanoTime()));
+			nextMessage = now + next(generator.messageRate);
+		}
+		if (now >= nextReject && !game.lastSteals.isEmpty())
+		{
+			send(new Frame(Frame.REJECT).writeVarint(game.lastSteals.size() - 1));
+			nextReject = now + next(generator.rejectRate);
+		}
 		
-		return letters;
+		if (now >= nextFlip)
+		{
+			if (numFlips == Game.NUM_TILES)
+			{
+				// everyone has to ask before the room deals again
+				if (!newGameRequested)
+					send(new Frame(Frame.NEW));
+				newGameRequested = true;
+			}
+			else if (game.currentPlayer == playerIndex)
+			{
+				send(new Frame(Frame.FLIP));
+				nextFlip = now + generator.flipDelay;
+			}
+		}
 	}
 	
-	int flipTile()
+	private void send(Frame frame)
 	{
-		int index = randomIndeces.removeFirst();
-		int letter = tiles[index].letter;
+		send(frame.toBytes());
+	}
+	
+	private void send(byte[] bytes)
+	{
+		if (closed)
+			return;
 		
-		super.flipTile(index);
-		charCounts[letter]++;
-		currentLetters[letter].add(index);
+		if (out.remaining() < bytes.length)
+		{
+			ByteBuffer larger = ByteBuffer.allocate(Math.max(2 * out.capacity(), out.position() + bytes.length));
+			out.flip();
+			larger.put(out);
+			out = larger;
+		}
+		out.put(bytes);
+		generator.sent++;
 		
-		return index;
+		try
+		{
+			flush();
+		}
+		catch (IOException e)
+		{
+			close();
+		}
 	}
 	
-	boolean canTake(String newWord)
+	private void flush() throws IOException
 	{
-		if (newWord.length() < 3)
-			return false;
+		out.flip();
+		channel.write(out);
+		boolean pending = out.hasRemaining();
+		out.compact();
 		
-		for (Word word : words)
-			if (isStealable(newWord, word.word))
-				return true;
-				
-		return false;
+		if (key.isValid())
+			key.interestOps(pending ? SelectionKey.OP_READ | SelectionKey.OP_WRITE : SelectionKey.OP_READ);
 	}
 	
-	static boolean overtakes(String word, String newWord)
+	void close()
 	{
-		int[] table = new int[NUM_LETTERS];
+		if (closed)
+			return;
 		
-		for (char c : newWord.toCharArray())
-			table[c - 'A']++;
-		for (char c : word.toCharArray())
-			table[c - 'A']--;
-			
-		for (int i = 0; i < NUM_LETTERS; i++)
-			if (table[i] < 0)
-				return false;
-				
-		return true;
+		closed = true;
+		key.cancel();
+		try
+		{
+			channel.close();
+		}
+		catch (IOException e) {}
+	}
+}
+
+// Front door for several Server processes on this machine. It reads each
+// client's first line, keeps every room on one backend (the one with the
+// fewest rooms when the room is new), and from then on splices the client to
+// that backend byte for byte. Backends are checked with HEALTH, and a backend
+// can be drained for a rolling restart so that it gets no new rooms.
+class RoomRouter
+{
+	static final int HEALTH_INTERVAL = 2000; // in milliseconds
+	static final int HEALTH_TIMEOUT = 1000; // in milliseconds
+	
+	final Selector selector;
+	final ServerSocketChannel serverChannel;
+	final ArrayList<Backend> backends;
+	final HashMap<String, Backend> assignments;
+	final HashMap<String, Long> assignmentTimes;
+	final ScheduledExecutorService checker;
+	
+	RoomRouter(int port, int[] backendPorts) throws IOException
+	{
+		selector = Selector.open();
+		serverChannel = ServerSocketChannel.open();
+		serverChannel.socket().setReuseAddress(true);
+		serverChannel.socket().bind(new InetSocketAddress(port));
+		serverChannel.configureBlocking(false);
+		serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+		
+		backends = new ArrayList<Backend>();
+		for (int backendPort : backendPorts)
+			backends.add(new Backend(backendPort));
+		assignments = new HashMap<String, Backend>();
+		assignmentTimes = new HashMap<String, Long>();
+		
+		checker = Executors.newSingleThreadScheduledExecutor();
+		checker.scheduleWithFixedDelay(new Runnable()
+		{
+			public void run()
+			{
+				for (Backend backend : backends)
+					check(backend);
+			}
+		}, 0, HEALTH_INTERVAL, TimeUnit.MILLISECONDS);
 	}
 	
-	ChangeData steal(String newWord, int player)
+	// the backend of the room, choosing one if the room is new or its backend
+	// is lost; null if none can take it
+	synchronized Backend route(String room)
 	{
-		if (newWord.length() < 3 || !Dictionary.isWord(newWord))
-			return NO_WORD;
+		Backend backend = assignments.get(room);
+		if (backend != null && !backend.lost())
+			return backend;
+		if (backend != null)
+			unassign(room);
+		backend = null;
 		
-		Word toSteal = null;
-		int maxScoreDiff = -1;
+		for (Backend other : backends)
+			if (other.healthy && !other.draining && (backend == null || other.numRooms < backend.numRooms))
+				backend = other;
 		
-		for (Word word : words)
+		if (backend != null)
+		{
+			assignments.put(room, backend);
+			assignmentTimes.put(room, System.currentTimeMillis());
+			backend.numRooms++;
+		}
+		return backend;
+	}
+	
+	// HEALTH, answered with HEALTHY [number of rooms] [room] ...; rooms the
+	// backend no longer has are forgotten once they are old enough to have opened,
+	// and all of its rooms once it is lost
+	private void check(Backend backend)
+	{
+		HashSet<String> rooms = null;
+		Socket socket = new Socket();
+		try
+		{
+			socket.connect(new InetSocketAddress(InetAddress.getLoopbackAddress(), backend.port), HEALTH_TIMEOUT);
+			socket.setSoTimeout(HEALTH_TIMEOUT);
+			socket.getOutputStream().write("HEALTH\n".getBytes(Connection.CHARSET));
+			
+			String line = new BufferedReader(new InputStreamReader(socket.getInputStream(), Connection.CHARSET)).readLine();
+			String[] codes = (line == null ? new String[] {""} : line.split(" "));
+			if (codes[0].equals("HEALTHY"))
+				rooms = new HashSet<String>(Arrays.asList(codes).subList(2, codes.length));
+		}
+		catch (IOException e) {}
+		finally
 		{
-			if (isStealable(newWord, word.word))
+			try
 			{
-				// checks to see if this steal is better
-				int scoreDiff = word.player == player ? newWord.length() - word.length() : newWord.length();
-				if (scoreDiff > maxScoreDiff)
-				{
-					toSteal = word;
-					maxScoreDiff = scoreDiff;
-				}
-				else if (scoreDiff == maxScoreDiff)
-				{
-					if (toSteal.player >= 0 && 
-						(toSteal.player == player || scores[word.player] > scores[toSteal.player]))
-						{
-							toSteal = word;
-						}
-				}
+				socket.close();
 			}
+			catch (IOException e) {}
 		}
 		
-		if (toSteal == null)
-			return NO_WORD;
-		
-		ChangeData data = new ChangeData();
-		int[] charWatch = new int[NUM_LETTERS];
-		
-		if (toSteal != EMPTY)
+		synchronized (this)
 		{
-			words.remove(toSteal);
-			data.playerStolen = toSteal.player;
-			data.stolenIndex = wordPiles[toSteal.player].indexOf(toSteal);
-			data.stolen = toSteal;
-			
-			for (int i = 0; i < data.stolen.length(); i++)
+			if (backend.healthy != (rooms != null))
 			{
-				int tileIndex = tilePlacements[data.playerStolen][data.stolenIndex][i];
-				int letter = tiles[tileIndex].letter;
-				int movedIndex = newWord.indexOf(letter + 'A', charWatch[letter]);
-				charWatch[letter] = movedIndex + 1;
-				data.tileMoves.add(new int[] {tileIndex, data.playerStolen, data.stolenIndex, i, player,
-					(data.playerStolen == player ? data.stolenIndex : wordPiles[player].size()), movedIndex});
+				System.out.println("Backend " + backend.port + (rooms != null ? " is up." : " is down."));
+				if (rooms == null)
+					backend.downSince = System.currentTimeMillis();
 			}
+			backend.healthy = (rooms != null);
+			if (rooms == null && !backend.lost())
+				return;
 			
-			// shifts all tiles after one word is taken
-			if (data.playerStolen != player)
-				for (int i = data.stolenIndex + 1; i < wordPiles[data.playerStolen].size(); i++)
-					for (int j = 0; j < wordPiles[data.playerStolen].get(i).length(); j++)
-					{
-						int tileIndex = tilePlacements[data.playerStolen][i][j];
-						data.tileMoves.add(new int[] {tileIndex, data.playerStolen, i, j, data.playerStolen, i - 1, j});
-					}
+			long old = System.currentTimeMillis() - 2 * HEALTH_INTERVAL;
+			ArrayList<String> forgotten = new ArrayList<String>();
+			for (Map.Entry<String, Backend> entry : assignments.entrySet())
+			{
+				String room = entry.getKey();
+				if (entry.getValue() == backend && (rooms == null || !rooms.contains(room) && assignmentTimes.get(room) < old))
+					forgotten.add(room);
+			}
+			for (String room : forgotten)
+				unassign(room);
 		}
-		
-		Word taken = new Word(newWord, player);
-		words.add(taken);
-		data.playerTaken = player;
-		data.taken = taken;
-		
-		updateCharCount(newWord, toSteal.word, charWatch, data);
-		
-		for (int[] move : data.tileMoves)
-			if (inWordPanel(move[1], move[2], move[3]))
-				tilePlacements[move[1]][move[2]][move[3]] = -1;
-		for (int[] move : data.tileMoves)
-			if (inWordPanel(move[4], move[5], move[6]))
-				tilePlacements[move[4]][move[5]][move[6]] = move[0];
-		
-		processChange(data);
-
-		return data;
 	}
 	
-	void undo(ChangeData lastSteal)
+	private void unassign(String room)
 	{
-		words.remove(lastSteal.taken);
-		if (lastSteal.stolen != null)
-			words.add(lastSteal.stolen);
-			
-		for (int[] move : lastSteal.tileMoves)
-			if (inWordPanel(move[4], move[5], move[6]))
-				tilePlacements[move[4]][move[5]][move[6]] = -1;
-		for (int[] move : lastSteal.tileMoves)
-		{
-			if (inWordPanel(move[1], move[2], move[3]))
-				tilePlacements[move[1]][move[2]][move[3]] = move[0];
-			else
-				randomIndeces.add((int)(Math.random() * randomIndeces.size()), move[0]);
-		}
-		
-		super.undo(lastSteal);
+		assignments.remove(room).numRooms--;
+		assignmentTimes.remove(room);
 	}
 	
-	private boolean isStealable(String newWord, String word)
+	synchronized void setDraining(int port, boolean draining)
 	{
-		if (word.length() >= newWord.length())
-			return false;
-			
-		int[] table = new int[NUM_LETTERS];
-		
-		for (char c : newWord.toCharArray())
-			table[c - 'A']++;
-		for (char c : word.toCharArray())
+		for (Backend backend : backends)
+			if (backend.port == port)
+				backend.draining = draining;
+	}
+	
+	synchronized String status()
+	{
+		StringBuilder output = new StringBuilder();
+		for (Backend backend : backends)
+			output.append(backend.port + ": " + (backend.healthy ? "up" : "down") + (backend.draining ? ", draining" : "")
+				+ ", " + backend.numRooms + " rooms\n");
+		return output.toString();
+	}
+	
+	void run() throws IOException
+	{
+		while (true)
 		{
-			table[c - 'A']--;
-			if (table[c - 'A'] < 0)
-				return false;
-		}
-		for (int i = 0; i < NUM_LETTERS; i++)
-			if (table[i] > charCounts[i])
-				return false;
+			selector.select();
+			
+			Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+			while (it.hasNext())
+			{
+				SelectionKey key = it.next();
+				it.remove();
 				
-		return true;
+				if (!key.isValid())
+					continue;
+				if (key.isAcceptable())
+				{
+					SocketChannel channel = serverChannel.accept();
+					if (channel != null)
+						new Splice(this, channel);
+				}
+				else
+					((Splice)key.attachment()).ready(key);
+			}
+		}
 	}
 	
-	private void updateCharCount(String newWord, String toSteal, int[] charWatch, ChangeData data)
+	// reads drain [port], undrain [port] and status commands
+	private void readCommands()
 	{
-		int[] table = new int[NUM_LETTERS];
-		for (char c : newWord.toCharArray())
-			table[c - 'A']++;
-		for (char c : toSteal.toCharArray())
-			table[c - 'A']--;
-		for (int i = 0; i < NUM_LETTERS; i++)
+		new Thread()
 		{
-			charCounts[i] -= table[i];
-			for (int j = 0; j < table[i]; j++)
+			public void run()
 			{
-				int index = currentLetters[i].removeFirst();
-				int movedIndex = data.taken.indexOf(i + 'A', charWatch[i]);
-				charWatch[i] = movedIndex + 1;
-				data.tileMoves.add(new int[] {index, -1, 0, 0, data.playerTaken,
-					(data.playerStolen == data.playerTaken ? data.stolenIndex : wordPiles[data.playerTaken].size()), movedIndex});
+				BufferedReader reader = new BufferedReader(new InputStreamReader(System.in));
+				try
+				{
+					String line;
+					while ((line = reader.readLine()) != null)
+					{
+						String[] codes = line.trim().split(" ");
+						if (codes[0].equals("drain") && codes.length > 1)
+							setDraining(Integer.parseInt(codes[1]), true);
+						else if (codes[0].equals("undrain") && codes.length > 1)
+							setDraining(Integer.parseInt(codes[1]), false);
+						else if (!codes[0].equals("status"))
+						{
+							System.out.println("drain [port], undrain [port] or status");
+							continue;
+						}
+						System.out.print(status());
+					}
+				}
+				catch (IOException e) {}
 			}
-		}
+		}.start();
 	}
 	
-	private boolean inWordPanel(int p, int w, int c)
+	// RoomRouter [port] [backend port] [backend port] ...
+	public static void main(String ... args) throws IOException
 	{
-		return p >= 0 && p < numPlayers && w >= 0 && w < NUM_TILES / MIN_LENGTH && c >= 0 && c < MAX_LENGTH;
+		int port = (args.length > 0 ? Integer.parseInt(args[0]) : MainScreen.PORT);
+		int[] backendPorts = new int[Math.max(0, args.length - 1)];
+		for (int i = 0; i < backendPorts.length; i++)
+			backendPorts[i] = Integer.parseInt(args[i + 1]);
+		
+		RoomRouter router = new RoomRouter(port, backendPorts);
+		router.readCommands();
+		System.out.println("Routing port " + port + " to " + Arrays.toString(backendPorts) + ".");
+		router.run();
 	}
 }
 
-class Take
+class Backend
 {
-	String word;
-	int player;
-	long time;
+	final int port;
+	volatile boolean healthy, draining;
+	int numRooms; // assigned by the router
+	long downSince; // in milliseconds, while not healthy
 	
-	Take(String word_, int player_, long time_)
+	Backend(int port)
 	{
-		word = word_;
-		player = player_;
-		time = time_;
+		this.port = port;
 	}
 	
-	int length()
+	// down for longer than its players keep trying to reconnect, so their rooms
+	// may as well start over somewhere else
+	boolean lost()
 	{
-		return word.length();
+		return !healthy && System.currentTimeMillis() - downSince > Room.RECONNECT_TIME;
 	}
 }
 
-class Dictionary
+// A client of a RoomRouter: its first line picks the backend, and after that
+// whatever either side sends is passed on unchanged.
+class Splice
 {
-	static HashSet<String> dictionary;
-	static ArrayList<String> dictionaryList;
+	final RoomRouter router;
+	final SocketChannel client;
+	SocketChannel backend;
+	SelectionKey clientKey, backendKey;
+	final ByteBuffer up, down; // client to backend and backend to client, both being filled
+	boolean connected, closed;
 	
-	static void load()
+	Splice(RoomRouter router, SocketChannel client) throws IOException
 	{
-		System.out.println("LOADING DICTIONARY...");
+		this.router = router;
+		this.client = client;
+		up = ByteBuffer.allocate(Connection.BUFFER_SIZE);
+		down = ByteBuffer.allocate(Connection.BUFFER_SIZE);
 		
+		client.configureBlocking(false);
+		client.socket().setTcpNoDelay(true);
+		clientKey = client.register(router.selector, SelectionKey.OP_READ, this);
+	}
+	
+	void ready(SelectionKey key)
+	{
 		try
 		{
-			Scanner input = new Scanner(new File("dictionary_full.txt"));
-			dictionary = new HashSet<String>();
-			dictionaryList = new ArrayList<String>();
-			while (input.hasNext())
+			if (key == backendKey && key.isConnectable())
 			{
-				String word = input.next();
-				dictionary.add(word);
-				dictionaryList.add(word);
+				backend.finishConnect();
+				connected = true;
+			}
+			if (key.isValid() && key.isReadable())
+			{
+				if (key == clientKey)
+				{
+					if (client.read(up) == -1)
+						throw new EOFException();
+					if (backend == null)
+						route();
+				}
+				else if (backend.read(down) == -1)
+					throw new EOFException();
 			}
+			
+			if (connected)
+				write(backend, up);
+			write(client, down);
+			if (!closed)
+				update();
 		}
 		catch (IOException e)
 		{
-			System.out.println("DICTIONARY FAILED TO LOAD.");
-			e.printStackTrace();
+			close();
 		}
 	}
 	
-	static boolean isWord(String word)
+	// NEW_CLIENT [name] [room] ... or RECONNECT [room] ...
+	private void route() throws IOException
 	{
-		return dictionary.contains(word);
+		int end = -1;
+		for (int i = 0; i < up.position() && end == -1; i++)
+			if (up.get(i) == '\n')
+				end = i;
+		if (end == -1)
+		{
+			if (!up.hasRemaining())
+				throw new IOException("first line too long");
+			return;
+		}
+		
+		String[] codes = new String(up.array(), 0, end, Connection.CHARSET).trim().split(" ");
+		String room = Server.DEFAULT_ROOM;
+		if (codes[0].equals("NEW_CLIENT") && codes.length > 2)
+			room = codes[2];
+		else if (codes[0].equals("RECONNECT") && codes.length > 1)
+			room = codes[1];
+		
+		Backend target = router.route(room);
+		if (target == null)
+		{
+			down.put("REFUSED\n".getBytes(Connection.CHARSET));
+			write(client, down);
+			throw new IOException("no backend for " + room);
+		}
+		
+		backend = SocketChannel.open();
+		backend.configureBlocking(false);
+		backend.socket().setTcpNoDelay(true);
+		connected = backend.connect(new InetSocketAddress(InetAddress.getLoopbackAddress(), target.port));
+		backendKey = backend.register(router.selector, connected ? SelectionKey.OP_READ : SelectionKey.OP_CONNECT, this);
 	}
 	
-	static String getWord(int index)
+	private static void write(SocketChannel channel, ByteBuffer buffer) throws IOException
 	{
-		return dictionaryList.get(index);
+		buffer.flip();
+		channel.write(buffer);
+		buffer.compact();
 	}
 	
-	static int size()
+	// reads only while there is room to keep what is read, and waits to write
+	// only while something is left over
+	private void update()
 	{
-		return dictionary.size();
+		clientKey.interestOps((up.hasRemaining() ? SelectionKey.OP_READ : 0)
+			| (down.position() > 0 ? SelectionKey.OP_WRITE : 0));
+		if (backendKey != null && connected)
+			backendKey.interestOps((down.hasRemaining() ? SelectionKey.OP_READ : 0)
+				| (up.position() > 0 ? SelectionKey.OP_WRITE : 0));
+	}
+	
+	void close()
+	{
+		if (closed)
+			return;
+		closed = true;
+		
+		// whatever is left (e.g. a refusal) goes out if it can
+		try
+		{
+			write(client, down);
+			if (connected)
+				write(backend, up);
+		}
+		catch (IOException e) {}
+		
+		clientKey.cancel();
+		if (backendKey != null)
+			backendKey.cancel();
+		try
+		{
+			client.close();
+			if (backend != null)
+				backend.close();
+		}
+		catch (IOException e) {}
+	}
+}
+
+// Headless multi-room server.
+// java DedicatedServer [port]
+class DedicatedServer
+{
+	public static void main(String ... args) throws IOException
+	{
+		int port = (args.length > 0 ? Integer.parseInt(args[0]) : MainScreen.PORT);
+		
+		Dictionary.load();
+		StealGraph.load();
+		
+		// several servers can run side by side behind a RoomRouter
+		GameLog.DIRECTORY = new File("logs", Integer.toString(port));
+		Server server = new Server(port);
+		server.recover();
+		server.start();
+		
+		try
+		{
+			server.metrics.register(port);
+			server.metrics.serve(ServerMetrics.HTTP_PORT + port - MainScreen.PORT);
+		}
+		catch (JMException e)
+		{
+			System.err.println("Could not register metrics: " + e.getMessage());
+		}
+		catch (IOException e)
+		{
+			System.err.println("Could not serve metrics: " + e.getMessage());
+		}
+		System.out.println("Serving rooms on port " + port + ".");
 	}
 }
 
@@ -2811,7 +8294,7 @@ class MainScreen
 					g.setFont(new Font("Times New Roman", 0, 24));
 				
 				if (receiving)
-					g.drawString("Receiving player " + (server.numClients + 1) + " of " + numPlayers + "...", 20, 120);
+					g.drawString("Receiving player " + (server.numClients() + 1) + " of " + numPlayers + "...", 20, 120);
 				else if (server != null && server.open)
 					g.drawString("Server running.", 20, 120);
 				
@@ -3008,6 +8491,7 @@ class SpeedScrabble35
 	{
 		TileImages.load();
 		Dictionary.load();
+		StealGraph.load();
 		
 		MainScreen screen = new MainScreen("Kevin");
 		screen.display();
@@ -0,0 +1,97 @@
+import jdk.incubator.vector.*;
+
+// LetterColumns checked a vector of words at a time. It needs the incubating
+// vector module on both ends, after SpeedScrabble35.java is built:
+//   javac --add-modules jdk.incubator.vector VectorBatchEvaluator.java
+//   java --add-modules jdk.incubator.vector ...
+// Dictionary loads it by name and keeps the scalar loop when it is missing.
+class VectorBatchEvaluator implements BatchEvaluator
+{
+	static final VectorSpecies<Byte> SPECIES = ByteVector.SPECIES_PREFERRED;
+	static final VectorSpecies<Long> LONGS = LongVector.SPECIES_PREFERRED;
+	
+	final LetterColumns columns;
+	final ByteVector laneBits; // 1 << (lane % 8)
+	final LongVector byteShifts; // 8 * lane
+	
+	VectorBatchEvaluator(LetterColumns columns)
+	{
+		// the lanes of each check have to fill whole 64 bit blocks of the output
+		if (SPECIES.length() > 64 || 64 % SPECIES.length() != 0 || SPECIES.vectorBitSize() != LONGS.vectorBitSize())
+			throw new UnsupportedOperationException(SPECIES.toString());
+		this.columns = columns;
+		
+		byte[] bits = new byte[SPECIES.length()];
+		for (int i = 0; i < bits.length; i++)
+			bits[i] = (byte)(1 << (i % 8));
+		laneBits = ByteVector.fromArray(SPECIES, bits, 0);
+		long[] shifts = new long[LONGS.length()];
+		for (int i = 0; i < shifts.length; i++)
+			shifts[i] = 8 * i;
+		byteShifts = LongVector.fromArray(LONGS, shifts, 0);
+	}
+	
+	public long[] formable(int[] available, int[] required, int minLength)
+	{
+		if (required == null)
+			required = new int[Game.NUM_LETTERS];
+		
+		int numWords = columns.numWords;
+		long[] output = new long[(numWords + 63) / 64];
+		int lanes = SPECIES.length();
+		
+		// letters that every word fits are skipped, so the counts left fit in a byte
+		int numLetters = 0;
+		int[] letters = new int[Game.NUM_LETTERS];
+		for (int j = 0; j < Game.NUM_LETTERS; j++)
+		{
+			if (required[j] > Math.min(available[j], columns.maxCounts[j]))
+				return output;
+			if (available[j] < columns.maxCounts[j] || required[j] > 0)
+				letters[numLetters++] = j;
+		}
+		if (minLength > Byte.MAX_VALUE)
+			return output;
+		
+		// a word fits when no letter count is over what is available or under
+		// what is required, so only the largest excess and shortfall are compared
+		int i = 0;
+		for (; i + 64 <= numWords; i += 64)
+		{
+			long bits = 0;
+			for (int k = 0; k < 64; k += lanes)
+			{
+				ByteVector excess = ByteVector.zero(SPECIES), shortfall = ByteVector.zero(SPECIES);
+				for (int n = 0; n < numLetters; n++)
+				{
+					int j = letters[n];
+					ByteVector counts = ByteVector.fromArray(SPECIES, columns.columns[j], i + k);
+					excess = excess.max(counts.sub((byte)available[j]));
+					shortfall = shortfall.max(counts.neg().add((byte)required[j]));
+				}
+				VectorMask<Byte> fits = excess.compare(VectorOperators.LE, (byte)0)
+					.and(shortfall.compare(VectorOperators.LE, (byte)0))
+					.and(ByteVector.fromArray(SPECIES, columns.lengths, i + k).compare(VectorOperators.GE, (byte)minLength));
+				bits |= toLong(fits) << k;
+			}
+			output[i >>> 6] = bits;
+		}
+		
+		for (; i < numWords; i++)
+			if (columns.fits(i, available, required, minLength))
+				output[i >>> 6] |= 1L << i;
+		return output;
+	}
+	
+	// the same as mask.toLong(), which is not compiled to vector instructions
+	// on every JDK: each lane gets its own bit within its byte, and the bytes of
+	// each long, then the longs, are ORed together
+	private long toLong(VectorMask<Byte> mask)
+	{
+		LongVector longs = ByteVector.zero(SPECIES).blend(laneBits, mask).reinterpretAsLongs();
+		longs = longs.or(longs.lanewise(VectorOperators.LSHR, 32));
+		longs = longs.or(longs.lanewise(VectorOperators.LSHR, 16));
+		longs = longs.or(longs.lanewise(VectorOperators.LSHR, 8));
+		return longs.and(0xFF).lanewise(VectorOperators.LSHL, byteShifts).reduceLanes(VectorOperators.OR);
+	}
+}